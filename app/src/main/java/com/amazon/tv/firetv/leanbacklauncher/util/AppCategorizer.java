@@ -14,19 +14,9 @@ public class AppCategorizer {
             }
         }
 
-        for (String s : MUSIC_FILTER) {
-            if (pkgName.contains(s)) {
-                return AppCategory.MUSIC;
-            }
-        }
-
-        for (String s : VIDEO_FILTER) {
-            if (pkgName.contains(s)) {
-                return AppCategory.VIDEO;
-            }
-        }
-
-        return AppCategory.OTHER;
+        // MUSIC_FILTER, VIDEO_FILTER and any user rules, music winning over video
+        AppCategory category = PackageRules.getCurrent().getCategory(pkgName);
+        return category != null ? category : AppCategory.OTHER;
     }
 
     public static final String[] VIDEO_FILTER = new String[]{
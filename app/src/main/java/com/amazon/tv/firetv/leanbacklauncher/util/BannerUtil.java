@@ -23,4 +23,9 @@ public class BannerUtil {
         BANNER_OVERRIDES.put("showtime", R.drawable.banner_showtime);
         BANNER_OVERRIDES.put("tunein.player", R.drawable.banner_tunein);
     }
+
+    // The drawable of the longest BANNER_OVERRIDES key (or user rule) in the package name, if any.
+    public static Integer getBannerOverride(String pkgName) {
+        return PackageRules.getCurrent().getBannerOverride(pkgName);
+    }
 }
@@ -0,0 +1,167 @@
+package com.amazon.tv.firetv.leanbacklauncher.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Queue;
+
+// Finds every keyword contained in a package name in one pass (Aho-Corasick). The automaton is
+// compiled into a full transition table over the characters package names are made of; anything
+// else sends it back to the start, so keywords can only use those characters, in lowercase.
+public class PackageMatcher {
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789._";
+    private static final int[] CHAR_CLASS = new int[128];
+    private static final int NO_VALUE = -1;
+
+    private final boolean mIgnoreCase;
+    private final int[] mLongestLength;
+    private final int[] mLongestValue;
+    private final int[] mMask;
+    private final int[][] mNext;
+
+    static {
+        for (int i = 0; i < CHAR_CLASS.length; i++) {
+            CHAR_CLASS[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            CHAR_CLASS[ALPHABET.charAt(i)] = i;
+        }
+    }
+
+    public PackageMatcher(String[] keywords, int[] values, boolean ignoreCase) {
+        this.mIgnoreCase = ignoreCase;
+        int symbols = ALPHABET.length();
+        ArrayList<int[]> next = new ArrayList<>();
+        ArrayList<int[]> outputs = new ArrayList<>();
+        next.add(newRow(symbols));
+        outputs.add(new int[]{0, 0, NO_VALUE});
+
+        // the trie, with mask, keyword length and value per node
+        for (int k = 0; k < keywords.length; k++) {
+            String keyword = keywords[k];
+            int node = 0;
+            boolean valid = keyword.length() > 0;
+            for (int i = 0; i < keyword.length() && valid; i++) {
+                int c = classOf(keyword.charAt(i), ignoreCase);
+                if (c < 0) {
+                    valid = false;
+                    break;
+                }
+                int child = ((int[]) next.get(node))[c];
+                if (child <= 0) {
+                    child = next.size();
+                    next.add(newRow(symbols));
+                    outputs.add(new int[]{0, 0, NO_VALUE});
+                    ((int[]) next.get(node))[c] = child;
+                }
+                node = child;
+            }
+            if (valid) {
+                int[] out = (int[]) outputs.get(node);
+                out[0] |= values[k];
+                out[1] = keyword.length();
+                out[2] = values[k];
+            }
+        }
+
+        int count = next.size();
+        this.mNext = new int[count][];
+        this.mMask = new int[count];
+        this.mLongestLength = new int[count];
+        this.mLongestValue = new int[count];
+        int[] fail = new int[count];
+        for (int i = 0; i < count; i++) {
+            this.mNext[i] = (int[]) next.get(i);
+            int[] out = (int[]) outputs.get(i);
+            this.mMask[i] = out[0];
+            this.mLongestLength[i] = out[1];
+            this.mLongestValue[i] = out[2];
+        }
+
+        // breadth first, so a node's failure target is complete before the node itself; missing
+        // transitions are filled in from the failure target, which turns the trie into a DFA
+        Queue<Integer> queue = new LinkedList<>();
+        for (int c = 0; c < symbols; c++) {
+            int child = this.mNext[0][c];
+            if (child > 0) {
+                fail[child] = 0;
+                queue.add(child);
+            } else {
+                this.mNext[0][c] = 0;
+            }
+        }
+        while (!queue.isEmpty()) {
+            int node = (Integer) queue.remove();
+            int f = fail[node];
+            this.mMask[node] |= this.mMask[f];
+            if (this.mLongestLength[node] == 0) {
+                this.mLongestLength[node] = this.mLongestLength[f];
+                this.mLongestValue[node] = this.mLongestValue[f];
+            }
+            for (int c = 0; c < symbols; c++) {
+                int child = this.mNext[node][c];
+                if (child > 0) {
+                    fail[child] = this.mNext[f][c];
+                    queue.add(child);
+                } else {
+                    this.mNext[node][c] = this.mNext[f][c];
+                }
+            }
+        }
+    }
+
+    private static int[] newRow(int symbols) {
+        int[] row = new int[symbols];
+        for (int i = 0; i < symbols; i++) {
+            row[i] = -1;
+        }
+        return row;
+    }
+
+    private static int classOf(char ch, boolean ignoreCase) {
+        if (ignoreCase && ch >= 'A' && ch <= 'Z') {
+            ch = (char) (ch + ('a' - 'A'));
+        }
+        return ch < CHAR_CLASS.length ? CHAR_CLASS[ch] : -1;
+    }
+
+    // Whether a keyword can ever be found, i.e. is not empty and only uses the characters above.
+    public static boolean isMatchable(String keyword, boolean ignoreCase) {
+        if (keyword.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (classOf(keyword.charAt(i), ignoreCase) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The values of all keywords found in text or'ed together.
+    public int matchAll(String text) {
+        int node = 0;
+        int mask = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int c = classOf(text.charAt(i), this.mIgnoreCase);
+            node = c < 0 ? 0 : this.mNext[node][c];
+            mask |= this.mMask[node];
+        }
+        return mask;
+    }
+
+    // The value of the longest keyword found in text, the first one on a tie.
+    public int matchLongest(String text, int fallback) {
+        int node = 0;
+        int length = 0;
+        int value = fallback;
+        for (int i = 0; i < text.length(); i++) {
+            int c = classOf(text.charAt(i), this.mIgnoreCase);
+            node = c < 0 ? 0 : this.mNext[node][c];
+            if (this.mLongestLength[node] > length) {
+                length = this.mLongestLength[node];
+                value = this.mLongestValue[node];
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,198 @@
+package com.amazon.tv.firetv.leanbacklauncher.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazon.tv.firetv.leanbacklauncher.apps.AppCategory;
+import com.amazon.tv.leanbacklauncher.BuildConfig;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
+// The keywords AppCategorizer and BannerUtil look for in package names, compiled into matchers.
+// Next to the built-in ones, rules can be added without a new build through package_rules.json in
+// the launcher's external files directory, e.g.
+//   {"categories": {"music": ["podcast"]}, "banners": {"plex": "banner_plex"}}
+// where a banner names one of the launcher's drawables. Categories other and settings can't be
+// given this way, and keywords with characters no package name has are skipped with a warning.
+// The file is read on every full refresh of the app list.
+public class PackageRules {
+    private static final AppCategory[] CATEGORY_PRIORITY = new AppCategory[]{AppCategory.MUSIC, AppCategory.VIDEO, AppCategory.GAME};
+    private static final String FILE_NAME = "package_rules.json";
+    private static final String TAG = "PackageRules";
+    private static volatile PackageRules sCurrent;
+    private final PackageMatcher mBannerMatcher;
+    private final PackageMatcher mCategoryMatcher;
+    private final String mKey;
+
+    private PackageRules(ArrayList<String> categoryKeywords, ArrayList<Integer> categoryMasks, ArrayList<String> bannerKeywords, ArrayList<Integer> bannerIds, String key) {
+        this.mCategoryMatcher = new PackageMatcher(toStringArray(categoryKeywords), toIntArray(categoryMasks), false);
+        this.mBannerMatcher = new PackageMatcher(toStringArray(bannerKeywords), toIntArray(bannerIds), true);
+        this.mKey = key;
+    }
+
+    public static PackageRules getCurrent() {
+        PackageRules rules = sCurrent;
+        if (rules == null) {
+            rules = load(null);
+            sCurrent = rules;
+        }
+        return rules;
+    }
+
+    public static void reload(Context context) {
+        sCurrent = load(context);
+    }
+
+    // Changes whenever the rules do, for caches that hold categories or banners.
+    public String getKey() {
+        return this.mKey;
+    }
+
+    public AppCategory getCategory(String pkgName) {
+        int mask = this.mCategoryMatcher.matchAll(pkgName);
+        if (mask != 0) {
+            for (AppCategory category : CATEGORY_PRIORITY) {
+                if ((mask & categoryBit(category)) != 0) {
+                    return category;
+                }
+            }
+        }
+        return null;
+    }
+
+    public Integer getBannerOverride(String pkgName) {
+        int resId = this.mBannerMatcher.matchLongest(pkgName, 0);
+        return resId != 0 ? resId : null;
+    }
+
+    private static int categoryBit(AppCategory category) {
+        return 1 << category.ordinal();
+    }
+
+    private static PackageRules load(Context context) {
+        ArrayList<String> categoryKeywords = new ArrayList<>();
+        ArrayList<Integer> categoryMasks = new ArrayList<>();
+        ArrayList<String> bannerKeywords = new ArrayList<>();
+        ArrayList<Integer> bannerIds = new ArrayList<>();
+        for (String keyword : AppCategorizer.MUSIC_FILTER) {
+            categoryKeywords.add(keyword);
+            categoryMasks.add(categoryBit(AppCategory.MUSIC));
+        }
+        for (String keyword : AppCategorizer.VIDEO_FILTER) {
+            categoryKeywords.add(keyword);
+            categoryMasks.add(categoryBit(AppCategory.VIDEO));
+        }
+        for (Map.Entry<String, Integer> entry : BannerUtil.BANNER_OVERRIDES.entrySet()) {
+            bannerKeywords.add(entry.getKey());
+            bannerIds.add(entry.getValue());
+        }
+
+        String key = "builtin";
+        File dir = context != null ? context.getExternalFilesDir(null) : null;
+        File file = dir != null ? new File(dir, FILE_NAME) : null;
+        if (file != null && file.isFile()) {
+            key = file.length() + "@" + file.lastModified();
+            ArrayList<String> fileCategoryKeywords = new ArrayList<>();
+            ArrayList<Integer> fileCategoryMasks = new ArrayList<>();
+            ArrayList<String> fileBannerKeywords = new ArrayList<>();
+            ArrayList<Integer> fileBannerIds = new ArrayList<>();
+            try {
+                JSONObject json = new JSONObject(readFile(file));
+                JSONObject categories = json.optJSONObject("categories");
+                if (categories != null) {
+                    Iterator<String> names = categories.keys();
+                    while (names.hasNext()) {
+                        String name = (String) names.next();
+                        AppCategory category;
+                        try {
+                            category = AppCategory.fromName(name);
+                        } catch (IllegalArgumentException e) {
+                            Log.w(TAG, "Unknown category " + name);
+                            continue;
+                        }
+                        if (category == AppCategory.OTHER || category == AppCategory.SETTINGS) {
+                            Log.w(TAG, "Category " + name + " can't be given by package name");
+                            continue;
+                        }
+                        JSONArray keywords = categories.getJSONArray(name);
+                        for (int i = 0; i < keywords.length(); i++) {
+                            String keyword = keywords.getString(i).toLowerCase();
+                            if (!PackageMatcher.isMatchable(keyword, false)) {
+                                Log.w(TAG, "Ignoring " + name + " keyword \"" + keyword + "\", package names only have letters, digits, '.' and '_'");
+                                continue;
+                            }
+                            fileCategoryKeywords.add(keyword);
+                            fileCategoryMasks.add(categoryBit(category));
+                        }
+                    }
+                }
+                JSONObject banners = json.optJSONObject("banners");
+                if (banners != null) {
+                    Iterator<String> keywords = banners.keys();
+                    while (keywords.hasNext()) {
+                        String keyword = (String) keywords.next();
+                        if (!PackageMatcher.isMatchable(keyword, true)) {
+                            Log.w(TAG, "Ignoring banner keyword \"" + keyword + "\", package names only have letters, digits, '.' and '_'");
+                            continue;
+                        }
+                        int resId = context.getResources().getIdentifier(banners.getString(keyword), "drawable", context.getPackageName());
+                        if (resId == 0) {
+                            Log.w(TAG, "No drawable " + banners.getString(keyword) + " for " + keyword);
+                        } else {
+                            fileBannerKeywords.add(keyword.toLowerCase());
+                            fileBannerIds.add(resId);
+                        }
+                    }
+                }
+                categoryKeywords.addAll(fileCategoryKeywords);
+                categoryMasks.addAll(fileCategoryMasks);
+                bannerKeywords.addAll(fileBannerKeywords);
+                bannerIds.addAll(fileBannerIds);
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Ignoring " + file, e);
+            }
+        }
+        if (BuildConfig.DEBUG) Log.d(TAG, "load: " + categoryKeywords.size() + " category and " + bannerKeywords.size() + " banner keywords, key " + key);
+        return new PackageRules(categoryKeywords, categoryMasks, bannerKeywords, bannerIds, key);
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return new String(data, 0, read, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String[] toStringArray(ArrayList<String> list) {
+        return (String[]) list.toArray(new String[list.size()]);
+    }
+
+    private static int[] toIntArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (Integer) list.get(i);
+        }
+        return array;
+    }
+}
@@ -13,6 +13,9 @@ public class SharedPreferencesUtil {
 
     private SharedPreferences hiddenPref, favPref, genPref;
 
+    // bumped after every write, so readers can tell their copy of the hidden apps is stale
+    private volatile int hiddenGeneration;
+
     private static SharedPreferencesUtil instance;
 
     public static SharedPreferencesUtil instance(Context context) {
@@ -47,12 +50,18 @@ public class SharedPreferencesUtil {
         return hiddenPref.getBoolean(component, false);
     }
 
+    public int getHiddenGeneration() {
+        return hiddenGeneration;
+    }
+
     public void hide(String component) {
         hiddenPref.edit().putBoolean(component, true).apply();
+        hiddenGeneration++;
     }
 
     public void unhide(String component) {
         hiddenPref.edit().putBoolean(component, false).apply();
+        hiddenGeneration++;
     }
 
     // todo unregister too
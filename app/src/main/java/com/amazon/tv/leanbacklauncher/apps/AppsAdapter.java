@@ -35,7 +35,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-public class AppsAdapter extends RowViewAdapter<AppsAdapter.AppViewHolder> implements AppsRanker.RankingListener, LaunchPointListGenerator.Listener, SharedPreferences.OnSharedPreferenceChangeListener {
+public class AppsAdapter extends RowViewAdapter<AppsAdapter.AppViewHolder> implements AppsRanker.RankingListener, LaunchPointListGenerator.Listener, LaunchPointImageLoader.Listener, SharedPreferences.OnSharedPreferenceChangeListener {
     private final ActionOpenLaunchPointListener mActionOpenLaunchPointListener;
     protected final Set<AppCategory> mAppTypes;
     protected AppFilter mFilter;
@@ -493,6 +493,9 @@ public class AppsAdapter extends RowViewAdapter<AppsAdapter.AppViewHolder> imple
                 LaunchPoint launchPoint = (LaunchPoint) this.mLaunchPoints.get(position);
                 holder.clearBannerState();
                 holder.init(launchPoint);
+                if (!launchPoint.isImageLoaded()) {
+                    LaunchPointImageLoader.getInstance(this.mContext).load(launchPoint, this);
+                }
             } finally {
                 AppTrace.endSection();
             }
@@ -513,6 +516,19 @@ public class AppsAdapter extends RowViewAdapter<AppsAdapter.AppViewHolder> imple
         if (holder.itemView instanceof BannerView) {
             holder.itemView.setSelected(false);
         }
+        int position = holder.getAdapterPosition();
+        if (position >= 0 && position < this.mLaunchPoints.size()) {
+            LaunchPointImageLoader.getInstance(this.mContext).deprioritize((LaunchPoint) this.mLaunchPoints.get(position), this);
+        }
+    }
+
+    public void onLaunchPointImageLoaded(LaunchPoint launchPoint) {
+        for (int i = 0; i < this.mLaunchPoints.size(); i++) {
+            if (this.mLaunchPoints.get(i) == launchPoint) {
+                notifyItemChanged(i);
+                return;
+            }
+        }
     }
 
     public int getItemCount() {
@@ -591,23 +607,18 @@ public class AppsAdapter extends RowViewAdapter<AppsAdapter.AppViewHolder> imple
     private ArrayList<LaunchPoint> getRefreshedLaunchPointList() {
         ArrayList<LaunchPoint> launchPoints = new ArrayList<>();
 
+        LaunchPointSnapshot snapshot = this.mAppsManager.getLaunchPointSnapshot();
         if (this.mAppTypes.isEmpty()) {
-            return this.mAppsManager.getAllLaunchPoints();
+            return new ArrayList<>(snapshot.getAllLaunchPoints());
         }
 
         for (AppCategory category : this.mAppTypes) {
             switch (category) {
                 case OTHER:
-                    launchPoints.addAll(this.mAppsManager.getLaunchPointsByCategory(AppCategory.OTHER));
-                    break;
                 case VIDEO:
-                    launchPoints.addAll(this.mAppsManager.getLaunchPointsByCategory(AppCategory.VIDEO));
-                    break;
                 case MUSIC:
-                    launchPoints.addAll(this.mAppsManager.getLaunchPointsByCategory(AppCategory.MUSIC));
-                    break;
                 case GAME:
-                    launchPoints.addAll(this.mAppsManager.getLaunchPointsByCategory(AppCategory.GAME));
+                    launchPoints.addAll(snapshot.getLaunchPoints(category));
                     break;
                 case SETTINGS:
                     launchPoints.addAll(this.mAppsManager.getSettingsLaunchPoints(true));
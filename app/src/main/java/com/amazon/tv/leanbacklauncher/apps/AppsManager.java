@@ -119,6 +119,10 @@ public class AppsManager implements InstallingLaunchPointListener, Listener, Bla
         return this.mLaunchPointListGenerator.getAllLaunchPoints();
     }
 
+    public LaunchPointSnapshot getLaunchPointSnapshot() {
+        return this.mLaunchPointListGenerator.getSnapshot();
+    }
+
     public ArrayList<LaunchPoint> getSettingsLaunchPoints(boolean force) {
         return this.mLaunchPointListGenerator.getSettingsLaunchPoints(force);
     }
@@ -11,6 +11,7 @@ import android.content.res.Resources;
 import android.content.res.Resources.Theme;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.support.v4.content.ContextCompat;
@@ -30,8 +31,6 @@ import com.amazon.tv.firetv.leanbacklauncher.apps.AppCategory;
 import com.amazon.tv.firetv.leanbacklauncher.util.BannerUtil;
 import com.amazon.tv.firetv.leanbacklauncher.util.SettingsUtil;
 
-import java.util.Map;
-
 public class LaunchPoint {
     private String mAppTitle;
     private Drawable mBannerDrawable;
@@ -52,6 +51,10 @@ public class LaunchPoint {
     private boolean mTranslucentTheme;
 
     private boolean mIsSettingsItem;
+    private byte[] mCachedImage;
+    private volatile boolean mImagesLoaded = true;
+    private ResolveInfo mResolveInfo;
+    private boolean mUseBanner;
     private AppCategory mAppCategory;
     private boolean hasGameFlag;
 
@@ -136,8 +139,9 @@ public class LaunchPoint {
     }
 
 
+    // Images are left to loadImages(), see setMetadata().
     public LaunchPoint(Context ctx, PackageManager pm, ResolveInfo info) {
-        set(ctx, pm, info);
+        setMetadata(ctx, pm, info, true);
         this.mIsSettingsItem = true;
     }
 
@@ -147,11 +151,39 @@ public class LaunchPoint {
         this.mIsSettingsItem = true;
     }
 
+    // Rebuilt from LaunchPointCache instead of PackageManager.
+    LaunchPoint(Context ctx, ResolveInfo info, String appTitle, boolean hasBanner, byte[] image, int launchColor, boolean translucentTheme, AppCategory appCategory, long installTime) {
+        clear(ctx);
+        this.mAppTitle = appTitle;
+        this.mLaunchIntent = getLaunchIntent(info);
+        if (this.mLaunchIntent.getComponent() != null) {
+            this.mComponentName = this.mLaunchIntent.getComponent().flattenToString();
+            this.mPackageName = this.mLaunchIntent.getComponent().getPackageName();
+        }
+        this.mAppCategory = appCategory;
+        this.mHasBanner = hasBanner;
+        this.mCachedImage = image;
+        this.mImagesLoaded = false;
+        this.mPriority = info.priority;
+        this.mTranslucentTheme = translucentTheme;
+        this.mLaunchColor = launchColor;
+        this.mPackageInstallTime = installTime;
+        this.mIsSettingsItem = true;
+    }
+
     public LaunchPoint set(Context ctx, PackageManager pm, ResolveInfo info) {
         return set(ctx, pm, info, true);
     }
 
     public LaunchPoint set(Context ctx, PackageManager pm, ResolveInfo info, boolean useBanner) {
+        setMetadata(ctx, pm, info, useBanner);
+        loadImages(ctx);
+        return this;
+    }
+
+    // Everything a row needs before the images, which loadImages() decodes once the launch point
+    // is about to be shown. Whether there is a banner follows from the resource ids alone.
+    private void setMetadata(Context ctx, PackageManager pm, ResolveInfo info, boolean useBanner) {
         clear(ctx);
         this.mAppTitle = info.loadLabel(pm).toString();
         this.mLaunchIntent = getLaunchIntent(info);
@@ -160,55 +192,73 @@ public class LaunchPoint {
             this.mPackageName = this.mLaunchIntent.getComponent().getPackageName();
         }
 
-        Resources res = ctx.getResources();
-        int maxWidth = res.getDimensionPixelOffset(R.dimen.max_banner_image_width);
-        int maxHeight = res.getDimensionPixelOffset(R.dimen.max_banner_image_height);
-
         ActivityInfo actInfo = info.activityInfo;
         if (actInfo != null) {
             mAppCategory = AppCategorizer.getAppCategory(this.mPackageName, actInfo);
+            this.mHasBanner = BannerUtil.getBannerOverride(this.mPackageName) != null || (useBanner && (actInfo.getBannerResource() != 0 || actInfo.getLogoResource() != 0));
+            this.mResolveInfo = info;
+            this.mUseBanner = useBanner;
+            this.mImagesLoaded = false;
+        }
+        this.mPriority = info.priority;
+        this.mTranslucentTheme = isTranslucentTheme(ctx, info);
+        this.mLaunchColor = getColor(ctx, info);
+        this.mPackageInstallTime = Util.getInstallTimeForPackage(ctx, this.mPackageName);
+    }
 
-            if (useBanner) {
-                this.mBannerDrawable = actInfo.loadBanner(pm);
-                if (this.mBannerDrawable instanceof BitmapDrawable) {
-                    this.mBannerDrawable = new BitmapDrawable(res, Util.getSizeCappedBitmap(((BitmapDrawable) this.mBannerDrawable).getBitmap(), maxWidth, maxHeight));
-                }
-            }
-
-            Map<String, Integer> overrides = BannerUtil.BANNER_OVERRIDES;
+    private static Drawable capBanner(Resources res, Drawable banner, int maxWidth, int maxHeight) {
+        if (banner instanceof BitmapDrawable) {
+            return new BitmapDrawable(res, Util.getSizeCappedBitmap(((BitmapDrawable) banner).getBitmap(), maxWidth, maxHeight));
+        }
+        return banner;
+    }
 
-            for (String str : overrides.keySet()) {
-                if (this.mPackageName.toLowerCase().contains(str)) {
-                    this.mBannerDrawable = ContextCompat.getDrawable(ctx, overrides.get(str));
-                    if (this.mBannerDrawable instanceof BitmapDrawable) {
-                        this.mBannerDrawable = new BitmapDrawable(res, Util.getSizeCappedBitmap(((BitmapDrawable) this.mBannerDrawable).getBitmap(), maxWidth, maxHeight));
-                    }
-                    break;
-                }
-            }
+    public boolean isImageLoaded() {
+        return this.mImagesLoaded;
+    }
 
-            if (this.mBannerDrawable != null) {
-                this.mHasBanner = true;
+    // Runs on a background thread; a banner that was announced but fails to load is replaced by
+    // the icon so the row keeps its view type.
+    public synchronized void loadImages(Context ctx) {
+        if (this.mImagesLoaded) {
+            return;
+        }
+        Resources res = ctx.getResources();
+        if (this.mCachedImage != null) {
+            Bitmap image = BitmapFactory.decodeByteArray(this.mCachedImage, 0, this.mCachedImage.length);
+            Drawable drawable = image != null ? new BitmapDrawable(res, image) : null;
+            if (this.mHasBanner) {
+                this.mBannerDrawable = drawable;
             } else {
-                if (useBanner) {
-                    this.mBannerDrawable = actInfo.loadLogo(pm);
-                    if (this.mBannerDrawable instanceof BitmapDrawable) {
-                        this.mBannerDrawable = new BitmapDrawable(res, Util.getSizeCappedBitmap(((BitmapDrawable) this.mBannerDrawable).getBitmap(), maxWidth, maxHeight));
+                this.mIconDrawable = drawable;
+            }
+            this.mCachedImage = null;
+        } else if (this.mResolveInfo != null) {
+            PackageManager pm = ctx.getPackageManager();
+            int maxWidth = res.getDimensionPixelOffset(R.dimen.max_banner_image_width);
+            int maxHeight = res.getDimensionPixelOffset(R.dimen.max_banner_image_height);
+            ActivityInfo actInfo = this.mResolveInfo.activityInfo;
+            Drawable banner = null;
+            if (this.mHasBanner) {
+                Integer override = BannerUtil.getBannerOverride(this.mPackageName);
+                if (override != null) {
+                    banner = capBanner(res, ContextCompat.getDrawable(ctx, override), maxWidth, maxHeight);
+                } else if (this.mUseBanner) {
+                    banner = capBanner(res, actInfo.loadBanner(pm), maxWidth, maxHeight);
+                    if (banner == null) {
+                        banner = capBanner(res, actInfo.loadLogo(pm), maxWidth, maxHeight);
                     }
                 }
-                if (this.mBannerDrawable != null) {
-                    this.mHasBanner = true;
-                } else {
-                    this.mHasBanner = false;
-                    this.mIconDrawable = info.loadIcon(pm);
+                if (banner == null) {
+                    banner = this.mResolveInfo.loadIcon(pm);
                 }
+                this.mBannerDrawable = banner;
+            } else {
+                this.mIconDrawable = this.mResolveInfo.loadIcon(pm);
             }
+            this.mResolveInfo = null;
         }
-        this.mPriority = info.priority;
-        this.mTranslucentTheme = isTranslucentTheme(ctx, info);
-        this.mLaunchColor = getColor(ctx, info);
-        this.mPackageInstallTime = Util.getInstallTimeForPackage(ctx, this.mPackageName);
-        return this;
+        this.mImagesLoaded = true;
     }
 
     public void addLaunchIntentFlags(int flags) {
@@ -235,6 +285,9 @@ public class LaunchPoint {
         this.mIsInitialInstall = false;
         this.mListener = null;
         this.mPackageInstallTime = -1;
+        this.mCachedImage = null;
+        this.mResolveInfo = null;
+        this.mImagesLoaded = true;
     }
 
     public LaunchPoint setInstallationState(LaunchPoint launchPoint) {
@@ -352,6 +405,10 @@ public class LaunchPoint {
         return this.mIsSettingsItem;
     }
 
+    boolean hasTranslucentTheme() {
+        return this.mTranslucentTheme;
+    }
+
     public int getPriority() {
         return this.mPriority;
     }
@@ -0,0 +1,212 @@
+package com.amazon.tv.leanbacklauncher.apps;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.amazon.tv.firetv.leanbacklauncher.apps.AppCategory;
+import com.amazon.tv.firetv.leanbacklauncher.util.PackageRules;
+import com.amazon.tv.leanbacklauncher.BuildConfig;
+import com.amazon.tv.leanbacklauncher.R;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+
+// What building a launch point from PackageManager yields, kept on disk between refreshes. Entries
+// are keyed by component and only match while the package's lastUpdateTime and versionCode are the
+// same; a different launcher build, locale, density or set of package rules drops the whole file.
+class LaunchPointCache {
+    private static final int MAGIC = 0x4c504331;
+    private static final String TAG = "LaunchPointCache";
+    private static final int VERSION = 1;
+    private boolean mAdded;
+    private final Context mContext;
+    private HashMap<String, Entry> mEntries = new HashMap<>();
+    private final AtomicFile mFile;
+    private final HashMap<String, Entry> mUsed = new HashMap<>();
+
+    private static class Entry {
+        String appTitle;
+        AppCategory category;
+        boolean hasBanner;
+        Bitmap image;
+        byte[] imageData;
+        long installTime;
+        int launchColor;
+        long lastUpdateTime;
+        boolean translucentTheme;
+        int versionCode;
+    }
+
+    LaunchPointCache(Context context) {
+        this.mContext = context;
+        this.mFile = new AtomicFile(new File(context.getCacheDir(), "launch_points"));
+    }
+
+    private String getConfigurationKey() {
+        return BuildConfig.VERSION_CODE + "/" + Locale.getDefault().toString() + "/" + this.mContext.getResources().getDisplayMetrics().densityDpi + "/" + PackageRules.getCurrent().getKey();
+    }
+
+    void load() {
+        HashMap<String, Entry> entries = new HashMap<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(this.mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !getConfigurationKey().equals(in.readUTF())) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String component = in.readUTF();
+                Entry entry = new Entry();
+                entry.lastUpdateTime = in.readLong();
+                entry.versionCode = in.readInt();
+                entry.appTitle = in.readUTF();
+                entry.launchColor = in.readInt();
+                entry.translucentTheme = in.readBoolean();
+                int category = in.readInt();
+                entry.category = category == -1 ? null : AppCategory.fromCategoryCode(category);
+                entry.installTime = in.readLong();
+                entry.hasBanner = in.readBoolean();
+                entry.imageData = new byte[in.readInt()];
+                in.readFully(entry.imageData);
+                entries.put(component, entry);
+            }
+            this.mEntries = entries;
+        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding launch point cache", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    LaunchPoint get(ResolveInfo info, PackageInfo packageInfo) {
+        if (packageInfo == null || info.activityInfo == null) {
+            return null;
+        }
+        String component = info.activityInfo.packageName + "/" + info.activityInfo.name;
+        Entry entry = (Entry) this.mEntries.get(component);
+        if (entry == null || entry.lastUpdateTime != packageInfo.lastUpdateTime || entry.versionCode != packageInfo.versionCode) {
+            return null;
+        }
+        this.mUsed.put(component, entry);
+        return new LaunchPoint(this.mContext, info, entry.appTitle, entry.hasBanner, entry.imageData, entry.launchColor, entry.translucentTheme, entry.category, entry.installTime);
+    }
+
+    // Needs the images, so it loads them if that has not happened yet.
+    void put(LaunchPoint launchPoint, ResolveInfo info, PackageInfo packageInfo) {
+        if (packageInfo == null || info.activityInfo == null || launchPoint.getTitle() == null) {
+            return;
+        }
+        launchPoint.loadImages(this.mContext);
+        Resources res = this.mContext.getResources();
+        int maxWidth = res.getDimensionPixelOffset(R.dimen.max_banner_image_width);
+        int maxHeight = res.getDimensionPixelOffset(R.dimen.max_banner_image_height);
+        Bitmap image = toBitmap(launchPoint.hasBanner() ? launchPoint.getBannerDrawable() : launchPoint.getIconDrawable(), maxWidth, maxHeight);
+        if (image == null) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.lastUpdateTime = packageInfo.lastUpdateTime;
+        entry.versionCode = packageInfo.versionCode;
+        entry.appTitle = launchPoint.getTitle();
+        entry.launchColor = launchPoint.getLaunchColor();
+        entry.translucentTheme = launchPoint.hasTranslucentTheme();
+        entry.category = launchPoint.getAppCategory();
+        entry.installTime = launchPoint.getFirstInstallTime();
+        entry.hasBanner = launchPoint.hasBanner();
+        entry.image = image;
+        this.mUsed.put(info.activityInfo.packageName + "/" + info.activityInfo.name, entry);
+        this.mAdded = true;
+    }
+
+    // Keeps only the entries looked up or added since load(), so uninstalled apps drop out. Without
+    // an entry added or dropped the file already holds exactly that and is left alone.
+    void save() {
+        if (!this.mAdded && this.mUsed.size() == this.mEntries.size()) {
+            if (BuildConfig.DEBUG) Log.d(TAG, "save: unchanged, " + this.mUsed.size() + " entries");
+            return;
+        }
+        FileOutputStream stream = null;
+        try {
+            stream = this.mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(getConfigurationKey());
+            out.writeInt(this.mUsed.size());
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            for (String component : this.mUsed.keySet()) {
+                Entry entry = (Entry) this.mUsed.get(component);
+                byte[] imageData = entry.imageData;
+                if (imageData == null) {
+                    png.reset();
+                    entry.image.compress(Bitmap.CompressFormat.PNG, 100, png);
+                    imageData = png.toByteArray();
+                }
+                out.writeUTF(component);
+                out.writeLong(entry.lastUpdateTime);
+                out.writeInt(entry.versionCode);
+                out.writeUTF(entry.appTitle);
+                out.writeInt(entry.launchColor);
+                out.writeBoolean(entry.translucentTheme);
+                out.writeInt(entry.category != null ? entry.category.code : -1);
+                out.writeLong(entry.installTime);
+                out.writeBoolean(entry.hasBanner);
+                out.writeInt(imageData.length);
+                out.write(imageData);
+            }
+            out.flush();
+            this.mFile.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write launch point cache", e);
+            if (stream != null) {
+                this.mFile.failWrite(stream);
+            }
+        }
+    }
+
+    private static Bitmap toBitmap(Drawable drawable, int maxWidth, int maxHeight) {
+        if (drawable == null) {
+            return null;
+        }
+        if (drawable instanceof BitmapDrawable) {
+            return ((BitmapDrawable) drawable).getBitmap();
+        }
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        float scale = Math.min(1.0f, Math.min(((float) maxWidth) / ((float) width), ((float) maxHeight) / ((float) height)));
+        width = Math.max(1, (int) (((float) width) * scale));
+        height = Math.max(1, (int) (((float) height) * scale));
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+}
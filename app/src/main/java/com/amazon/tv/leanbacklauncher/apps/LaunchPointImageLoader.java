@@ -0,0 +1,110 @@
+package com.amazon.tv.leanbacklauncher.apps;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.amazon.tv.leanbacklauncher.BuildConfig;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Decodes launch point images off the main thread in the order rows ask for them. The newest
+// request goes first, so whatever was bound last, i.e. what is on screen, is decoded before the
+// rest; views that scroll away push their request to the back.
+class LaunchPointImageLoader {
+    private static final String TAG = "LaunchPointImageLoader";
+    private static LaunchPointImageLoader sInstance;
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<Request> mRequests = new ArrayDeque<>();
+    private boolean mRunning;
+
+    interface Listener {
+        void onLaunchPointImageLoaded(LaunchPoint launchPoint);
+    }
+
+    private static final class Request {
+        final LaunchPoint launchPoint;
+        final Listener listener;
+
+        Request(LaunchPoint launchPoint, Listener listener) {
+            this.launchPoint = launchPoint;
+            this.listener = listener;
+        }
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                final Request request;
+                synchronized (LaunchPointImageLoader.this) {
+                    request = (Request) LaunchPointImageLoader.this.mRequests.pollFirst();
+                    if (request == null) {
+                        LaunchPointImageLoader.this.mRunning = false;
+                        return;
+                    }
+                }
+                try {
+                    request.launchPoint.loadImages(LaunchPointImageLoader.this.mContext);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Cannot load images for " + request.launchPoint.getPackageName(), e);
+                    continue;
+                }
+                LaunchPointImageLoader.this.mMainHandler.post(new Runnable() {
+                    public void run() {
+                        request.listener.onLaunchPointImageLoaded(request.launchPoint);
+                    }
+                });
+            }
+        }
+    };
+
+    private LaunchPointImageLoader(Context context) {
+        this.mContext = context.getApplicationContext();
+    }
+
+    static synchronized LaunchPointImageLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LaunchPointImageLoader(context);
+        }
+        return sInstance;
+    }
+
+    synchronized void load(LaunchPoint launchPoint, Listener listener) {
+        Request request = remove(launchPoint, listener);
+        if (request == null) {
+            request = new Request(launchPoint, listener);
+        }
+        this.mRequests.addFirst(request);
+        if (!this.mRunning) {
+            this.mRunning = true;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(this.mDrainRunnable);
+        }
+        if (BuildConfig.DEBUG) Log.d(TAG, "load " + launchPoint.getPackageName() + ", pending " + this.mRequests.size());
+    }
+
+    synchronized void deprioritize(LaunchPoint launchPoint, Listener listener) {
+        Request request = remove(launchPoint, listener);
+        if (request != null) {
+            this.mRequests.addLast(request);
+        }
+    }
+
+    // Launch points are matched by identity, equals() cannot tell two of them apart reliably.
+    private Request remove(LaunchPoint launchPoint, Listener listener) {
+        Iterator<Request> it = this.mRequests.iterator();
+        while (it.hasNext()) {
+            Request request = (Request) it.next();
+            if (request.launchPoint == launchPoint && request.listener == listener) {
+                it.remove();
+                return request;
+            }
+        }
+        return null;
+    }
+}
@@ -5,15 +5,20 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.media.tv.TvContract;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.amazon.tv.firetv.leanbacklauncher.apps.AppCategory;
 import com.amazon.tv.firetv.leanbacklauncher.util.FireTVUtils;
+import com.amazon.tv.firetv.leanbacklauncher.util.PackageRules;
 import com.amazon.tv.firetv.leanbacklauncher.util.SettingsUtil;
 import com.amazon.tv.firetv.leanbacklauncher.util.SharedPreferencesUtil;
 import com.amazon.tv.leanbacklauncher.BuildConfig;
@@ -24,6 +29,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +38,8 @@ import java.util.Set;
 
 
 public class LaunchPointListGenerator {
+    private static final int PACKAGE_ADD_OR_UPDATE = 0;
+    private static final int PACKAGE_REMOVE = 1;
     private static final String TAG = "LaunchPointList";
     private List<LaunchPoint> mAllLaunchPoints;
     private final Queue<CachedAction> mCachedActions;
@@ -41,10 +49,15 @@ public class LaunchPointListGenerator {
     private boolean mIsReady;
     private final List<Listener> mListeners;
     private final Object mLock;
+    private final Handler mMainHandler;
+    private boolean mPackageWorkerRunning;
+    private final LinkedHashMap<String, Integer> mPendingPackages;
     private HashMap<String, Integer> mNonUpdatableBlacklist;
     private ArrayList<LaunchPoint> mSettingsLaunchPoints;
     private boolean mShouldNotify;
+    private volatile LaunchPointSnapshot mSnapshot;
     private HashMap<String, Integer> mUpdatableBlacklist;
+    private volatile int mVersion;
 
     public interface Listener {
         void onLaunchPointListGeneratorReady();
@@ -115,6 +128,8 @@ public class LaunchPointListGenerator {
         }
 
         protected List<LaunchPoint> doInBackground(Void... params) {
+            PackageRules.reload(LaunchPointListGenerator.this.mContext);
+
             Intent mainIntent = new Intent("android.intent.action.MAIN");
             mainIntent.addCategory("android.intent.category.LAUNCHER");
 
@@ -158,15 +173,34 @@ public class LaunchPointListGenerator {
                 }
             }
 
+            // Unchanged packages come from the cache; only new or updated ones are loaded in full.
+            Map<String, PackageInfo> packages = new HashMap<>();
+            for (PackageInfo packageInfo : pkgMan.getInstalledPackages(0)) {
+                packages.put(packageInfo.packageName, packageInfo);
+            }
+            LaunchPointCache cache = new LaunchPointCache(LaunchPointListGenerator.this.mContext);
+            cache.load();
+            int cached = 0;
+
             for (int x = 0, size = allLaunchPoints.size(); x < size; x++) {
                 ResolveInfo info = allLaunchPoints.get(x);
 
                 ActivityInfo activityInfo = info.activityInfo;
 
                 if (activityInfo != null) {
-                    launcherItems.add(new LaunchPoint(LaunchPointListGenerator.this.mContext, pkgMan, info));
+                    PackageInfo packageInfo = packages.get(activityInfo.packageName);
+                    LaunchPoint launchPoint = cache.get(info, packageInfo);
+                    if (launchPoint == null) {
+                        launchPoint = new LaunchPoint(LaunchPointListGenerator.this.mContext, pkgMan, info);
+                        cache.put(launchPoint, info, packageInfo);
+                    } else {
+                        cached++;
+                    }
+                    launcherItems.add(launchPoint);
                 }
             }
+            cache.save();
+            if (BuildConfig.DEBUG) Log.d(TAG, "CreateLaunchPointListTask: " + cached + " of " + launcherItems.size() + " launch points from cache");
 
             return launcherItems;
         }
@@ -175,6 +209,7 @@ public class LaunchPointListGenerator {
             synchronized (LaunchPointListGenerator.this.mLock) {
                 LaunchPointListGenerator.this.mAllLaunchPoints = new ArrayList<>();
                 LaunchPointListGenerator.this.mAllLaunchPoints.addAll(launcherItems);
+                LaunchPointListGenerator.this.mVersion++;
             }
             synchronized (LaunchPointListGenerator.this.mCachedActions) {
                 Log.i(TAG, "mCachedActions is empty:" + mCachedActions.isEmpty());
@@ -199,6 +234,8 @@ public class LaunchPointListGenerator {
         this.mUpdatableBlacklist = new HashMap<>();
         this.mNonUpdatableBlacklist = new HashMap<>();
         this.mLock = new Object();
+        this.mMainHandler = new Handler(Looper.getMainLooper());
+        this.mPendingPackages = new LinkedHashMap<>();
         this.mContext = ctx;
     }
 
@@ -217,70 +254,120 @@ public class LaunchPointListGenerator {
 
     public void addOrUpdatePackage(String pkgName) {
         if (!TextUtils.isEmpty(pkgName)) {
-            synchronized (this.mCachedActions) {
-                if (this.mIsReady) {
-                    synchronized (this.mLock) {
+            enqueuePackage(pkgName, PACKAGE_ADD_OR_UPDATE);
+        }
+    }
 
-                        // TODO: sync with CreateLaunchPointListTask
-                        ArrayList<LaunchPoint> launchPoints = createLaunchPoints(pkgName);
+    public void removePackage(String pkgName) {
+        if (!TextUtils.isEmpty(pkgName)) {
+            enqueuePackage(pkgName, PACKAGE_REMOVE);
+        }
+    }
 
-                        if (!launchPoints.isEmpty()) {
+    // Package changes are worked off one at a time in the background. A package that is queued
+    // again before its turn keeps its place and only the latest action for it is carried out.
+    private void enqueuePackage(String pkgName, int action) {
+        synchronized (this.mPendingPackages) {
+            this.mPendingPackages.put(pkgName, action);
+            if (!this.mPackageWorkerRunning) {
+                this.mPackageWorkerRunning = true;
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(this.mPackageWorker);
+            }
+        }
+    }
 
-                            // remove every launcher with this package
-                            for (int x = 0; x < this.mAllLaunchPoints.size(); x++) {
-                                LaunchPoint lp = this.mAllLaunchPoints.get(x);
+    private final Runnable mPackageWorker = new Runnable() {
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                final String pkgName;
+                final int action;
+                synchronized (LaunchPointListGenerator.this.mPendingPackages) {
+                    Iterator<Map.Entry<String, Integer>> it = LaunchPointListGenerator.this.mPendingPackages.entrySet().iterator();
+                    if (!it.hasNext()) {
+                        LaunchPointListGenerator.this.mPackageWorkerRunning = false;
+                        return;
+                    }
+                    Map.Entry<String, Integer> entry = it.next();
+                    pkgName = entry.getKey();
+                    action = entry.getValue();
+                    it.remove();
+                }
+                final ArrayList<LaunchPoint> launchPoints = action == PACKAGE_ADD_OR_UPDATE ? createLaunchPoints(pkgName) : null;
+                final boolean hasSettingsEntry = packageHasSettingsEntry(pkgName);
+                LaunchPointListGenerator.this.mMainHandler.post(new Runnable() {
+                    public void run() {
+                        if (action == PACKAGE_ADD_OR_UPDATE) {
+                            publishPackageUpdated(pkgName, launchPoints, hasSettingsEntry);
+                        } else {
+                            publishPackageRemoved(pkgName, hasSettingsEntry);
+                        }
+                    }
+                });
+            }
+        }
+    };
 
-                                if (lp != null && pkgName.equalsIgnoreCase(lp.getPackageName())) {
-                                    this.mAllLaunchPoints.remove(x);
-                                }
+    private void publishPackageUpdated(String pkgName, ArrayList<LaunchPoint> launchPoints, boolean hasSettingsEntry) {
+        synchronized (this.mCachedActions) {
+            if (this.mIsReady) {
+                synchronized (this.mLock) {
+                    if (!launchPoints.isEmpty()) {
+
+                        // remove every launcher with this package
+                        Iterator<LaunchPoint> itt = this.mAllLaunchPoints.iterator();
+                        while (itt.hasNext()) {
+                            LaunchPoint lp = itt.next();
+                            if (lp != null && pkgName.equalsIgnoreCase(lp.getPackageName())) {
+                                itt.remove();
                             }
-                            this.mAllLaunchPoints.addAll(launchPoints);
+                        }
+                        this.mAllLaunchPoints.addAll(launchPoints);
+                        this.mVersion++;
 
-                            if (!isBlacklisted(pkgName) && this.mShouldNotify) {
-                                for (Listener cl : this.mListeners) {
-                                    cl.onLaunchPointsAddedOrUpdated(launchPoints);
-                                }
+                        if (!isBlacklisted(pkgName) && this.mShouldNotify) {
+                            for (Listener cl : this.mListeners) {
+                                cl.onLaunchPointsAddedOrUpdated(launchPoints);
                             }
                         }
+                    }
 
-                        if (packageHasSettingsEntry(pkgName)) {
-                            for (Listener cl2 : this.mListeners) {
-                                cl2.onSettingsChanged();
-                            }
+                    if (hasSettingsEntry) {
+                        for (Listener cl2 : this.mListeners) {
+                            cl2.onSettingsChanged();
                         }
                     }
-                    return;
                 }
-                this.mCachedActions.add(new CachedAction(0, pkgName));
+                return;
             }
+            this.mCachedActions.add(new CachedAction(0, pkgName));
         }
     }
 
-    public void removePackage(String pkgName) {
-        if (!TextUtils.isEmpty(pkgName)) {
-            synchronized (this.mCachedActions) {
-                if (this.mIsReady) {
-                    synchronized (this.mLock) {
-                        ArrayList<LaunchPoint> removedLaunchPoints = new ArrayList<>();
-                        getLaunchPointsByPackage(this.mInstallingLaunchPoints, removedLaunchPoints, pkgName, true);
-                        getLaunchPointsByPackage(this.mAllLaunchPoints, removedLaunchPoints, pkgName, true);
-                        if (!(removedLaunchPoints.isEmpty() || isBlacklisted(pkgName))) {
-                            if (this.mShouldNotify) {
-                                for (Listener cl : this.mListeners) {
-                                    cl.onLaunchPointsRemoved(removedLaunchPoints);
-                                }
+    private void publishPackageRemoved(String pkgName, boolean hasSettingsEntry) {
+        synchronized (this.mCachedActions) {
+            if (this.mIsReady) {
+                synchronized (this.mLock) {
+                    ArrayList<LaunchPoint> removedLaunchPoints = new ArrayList<>();
+                    getLaunchPointsByPackage(this.mInstallingLaunchPoints, removedLaunchPoints, pkgName, true);
+                    getLaunchPointsByPackage(this.mAllLaunchPoints, removedLaunchPoints, pkgName, true);
+                    this.mVersion++;
+                    if (!(removedLaunchPoints.isEmpty() || isBlacklisted(pkgName))) {
+                        if (this.mShouldNotify) {
+                            for (Listener cl : this.mListeners) {
+                                cl.onLaunchPointsRemoved(removedLaunchPoints);
                             }
                         }
-                        if (packageHasSettingsEntry(pkgName)) {
-                            for (Listener cl2 : this.mListeners) {
-                                cl2.onSettingsChanged();
-                            }
+                    }
+                    if (hasSettingsEntry) {
+                        for (Listener cl2 : this.mListeners) {
+                            cl2.onSettingsChanged();
                         }
                     }
-                    return;
                 }
-                this.mCachedActions.add(new CachedAction(1, pkgName));
+                return;
             }
+            this.mCachedActions.add(new CachedAction(1, pkgName));
         }
     }
 
@@ -316,6 +403,7 @@ public class LaunchPointListGenerator {
                     int intValue = occurrences + 1;
                     occurrences = intValue;
                     blacklist.put(pkgName, intValue);
+                    this.mVersion++;
                 }
                 return added;
             }
@@ -347,6 +435,7 @@ public class LaunchPointListGenerator {
                         occurrences = occurrences - 1;
                         if (occurrences <= 0 || force) {
                             blacklist.remove(pkgName);
+                            this.mVersion++;
                             if (otherOccurrences == null) {
                                 removed = true;
                                 ArrayList<LaunchPoint> blacklistedLaunchPoints = new ArrayList<>();
@@ -386,6 +475,7 @@ public class LaunchPointListGenerator {
                             launchPoints.add(launchPoint);
                         }
                         this.mInstallingLaunchPoints.addAll(launchPoints);
+                        this.mVersion++;
                         if (!isBlacklisted(pkgName) && this.mShouldNotify) {
                             for (Listener cl : this.mListeners) {
                                 cl.onLaunchPointsAddedOrUpdated(launchPoints);
@@ -430,67 +520,50 @@ public class LaunchPointListGenerator {
         return removeLaunchPoints;
     }
 
-    public ArrayList<LaunchPoint> getAllLaunchPoints() {
-        ArrayList<LaunchPoint> allLaunchPoints = new ArrayList<>();
-        if (mAllLaunchPoints != null && mAllLaunchPoints.size() > 0) {
-            for (LaunchPoint lp : mAllLaunchPoints) {
-                if (!isBlacklisted(lp.getPackageName())) {
-                    allLaunchPoints.add(lp);
-                }
+    // Every change to the launch point lists or the blacklists bumps mVersion under mLock. Rows
+    // share whatever snapshot matches the current version and only the first to ask after a change
+    // builds a new one; hiding an app is picked up through the hidden apps generation.
+    public LaunchPointSnapshot getSnapshot() {
+        if (this.prefUtil == null) {
+            this.prefUtil = SharedPreferencesUtil.instance(this.mContext);
+        }
+        LaunchPointSnapshot snapshot = this.mSnapshot;
+        if (snapshot != null && snapshot.getVersion() == this.mVersion && snapshot.getHiddenGeneration() == this.prefUtil.getHiddenGeneration()) {
+            return snapshot;
+        }
+        synchronized (this.mLock) {
+            snapshot = this.mSnapshot;
+            int hiddenGeneration = this.prefUtil.getHiddenGeneration();
+            if (snapshot == null || snapshot.getVersion() != this.mVersion || snapshot.getHiddenGeneration() != hiddenGeneration) {
+                snapshot = new LaunchPointSnapshot(this.mVersion, hiddenGeneration, this.mInstallingLaunchPoints, this.mAllLaunchPoints, new LaunchPointSnapshot.BlacklistFilter() {
+                    public boolean isBlacklisted(String pkgName) {
+                        return LaunchPointListGenerator.this.isBlacklisted(pkgName);
+                    }
+                });
+                this.mSnapshot = snapshot;
+                if (BuildConfig.DEBUG) Log.d(TAG, "getSnapshot: built " + snapshot);
             }
+            return snapshot;
         }
+    }
 
-        return allLaunchPoints;
+    public ArrayList<LaunchPoint> getAllLaunchPoints() {
+        return new ArrayList<>(getSnapshot().getAllLaunchPoints());
     }
 
     public ArrayList<LaunchPoint> getLaunchPointsByCategory(AppCategory... types) {
         ArrayList<LaunchPoint> launchPoints = new ArrayList<>();
-        synchronized (this.mLock) {
-            for (AppCategory category : types) {
-                getLaunchPointsLocked(this.mInstallingLaunchPoints, launchPoints, category);
-                getLaunchPointsLocked(this.mAllLaunchPoints, launchPoints, category);
+        LaunchPointSnapshot snapshot = getSnapshot();
+        for (AppCategory category : types) {
+            if (category == AppCategory.SETTINGS) {
+                launchPoints.addAll(getSettingsLaunchPoints(false));
+            } else {
+                launchPoints.addAll(snapshot.getLaunchPoints(category));
             }
         }
         return launchPoints;
     }
 
-    // todo clean up the AppCategory mess
-    private void getLaunchPointsLocked(List<LaunchPoint> parentList, List<LaunchPoint> childList, AppCategory category) {
-        switch (category) {
-            case GAME:
-                for (LaunchPoint lp : parentList) {
-                    if (!isBlacklisted(lp.getPackageName()) && lp.isGame()) {
-                        childList.add(lp);
-                    }
-                }
-                break;
-            case MUSIC:
-                for (LaunchPoint lp : parentList) {
-                    if (!isBlacklisted(lp.getPackageName()) && lp.getAppCategory() == AppCategory.MUSIC) {
-                        childList.add(lp);
-                    }
-                }
-                break;
-            case VIDEO:
-                for (LaunchPoint lp : parentList) {
-                    if (!isBlacklisted(lp.getPackageName()) && lp.getAppCategory() == AppCategory.VIDEO) {
-                        childList.add(lp);
-                    }
-                }
-                break;
-            case OTHER:
-                for (LaunchPoint lp : parentList) {
-                    if (!isBlacklisted(lp.getPackageName()) && lp.getAppCategory() == AppCategory.OTHER) {
-                        childList.add(lp);
-                    }
-                }
-                break;
-            case SETTINGS:
-                childList.addAll(getSettingsLaunchPoints(false));
-                break;
-        }
-    }
-
     public ArrayList<LaunchPoint> getSettingsLaunchPoints(boolean force) {
         if (force || this.mSettingsLaunchPoints == null) {
             this.mSettingsLaunchPoints = createSettingsList();
@@ -0,0 +1,84 @@
+package com.amazon.tv.leanbacklauncher.apps;
+
+import com.amazon.tv.firetv.leanbacklauncher.apps.AppCategory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+// An immutable view of the generator's launch points, built once per change and shared by every
+// row. Installing launch points come first, as they always did in the category lists; the list of
+// all apps only holds installed ones.
+public final class LaunchPointSnapshot {
+    private final List<LaunchPoint> mAllLaunchPoints;
+    private final BitSet mBlacklisted;
+    private final List<LaunchPoint>[] mCategories;
+    private final int mHiddenGeneration;
+    private final List<LaunchPoint> mLaunchPoints;
+    private final int mVersion;
+
+    interface BlacklistFilter {
+        boolean isBlacklisted(String pkgName);
+    }
+
+    LaunchPointSnapshot(int version, int hiddenGeneration, List<LaunchPoint> installingLaunchPoints, List<LaunchPoint> allLaunchPoints, BlacklistFilter filter) {
+        this.mVersion = version;
+        this.mHiddenGeneration = hiddenGeneration;
+        ArrayList<LaunchPoint> launchPoints = new ArrayList<>(installingLaunchPoints.size() + allLaunchPoints.size());
+        launchPoints.addAll(installingLaunchPoints);
+        launchPoints.addAll(allLaunchPoints);
+        this.mLaunchPoints = Collections.unmodifiableList(launchPoints);
+        this.mBlacklisted = new BitSet(launchPoints.size());
+        for (int i = 0; i < launchPoints.size(); i++) {
+            if (filter.isBlacklisted(((LaunchPoint) launchPoints.get(i)).getPackageName())) {
+                this.mBlacklisted.set(i);
+            }
+        }
+
+        AppCategory[] categories = AppCategory.values();
+        ArrayList<LaunchPoint>[] lists = new ArrayList[categories.length];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = new ArrayList<>();
+        }
+        ArrayList<LaunchPoint> all = new ArrayList<>(allLaunchPoints.size());
+        int firstInstalled = installingLaunchPoints.size();
+        for (int i = this.mBlacklisted.nextClearBit(0); i < launchPoints.size(); i = this.mBlacklisted.nextClearBit(i + 1)) {
+            LaunchPoint lp = (LaunchPoint) launchPoints.get(i);
+            AppCategory category = lp.getAppCategory();
+            if (category != null && category != AppCategory.SETTINGS) {
+                lists[category.ordinal()].add(lp);
+            }
+            if (i >= firstInstalled) {
+                all.add(lp);
+            }
+        }
+        this.mCategories = new List[categories.length];
+        for (int i = 0; i < lists.length; i++) {
+            this.mCategories[i] = Collections.unmodifiableList(lists[i]);
+        }
+        this.mAllLaunchPoints = Collections.unmodifiableList(all);
+    }
+
+    int getVersion() {
+        return this.mVersion;
+    }
+
+    int getHiddenGeneration() {
+        return this.mHiddenGeneration;
+    }
+
+    // Installed launch points that are not blacklisted.
+    public List<LaunchPoint> getAllLaunchPoints() {
+        return this.mAllLaunchPoints;
+    }
+
+    // Settings are not part of the snapshot and come back empty.
+    public List<LaunchPoint> getLaunchPoints(AppCategory category) {
+        return this.mCategories[category.ordinal()];
+    }
+
+    public String toString() {
+        return "LaunchPointSnapshot{version=" + this.mVersion + ", size=" + this.mLaunchPoints.size() + ", blacklisted=" + this.mBlacklisted.cardinality() + "}";
+    }
+}
@@ -28,6 +28,7 @@ import com.amazon.tv.leanbacklauncher.core.LaunchException;
 import com.amazon.tv.leanbacklauncher.trace.AppTrace;
 import com.amazon.tv.leanbacklauncher.trace.AppTrace.TraceTag;
 import com.amazon.tv.tvrecommendations.IRecommendationsService;
+import com.amazon.tv.tvrecommendations.SharedImage;
 import com.amazon.tv.tvrecommendations.TvRecommendation;
 import com.amazon.tv.leanbacklauncher.util.Util;
 
@@ -155,7 +156,11 @@ public class NotificationsAdapter extends NotificationsServiceAdapter<Notificati
                     try {
                         IRecommendationsService boundService = NotifViewHolder.this.adapter.mBoundService;
                         if (boundService != null) {
-                            img = boundService.getImageForRecommendation(notifKey);
+                            if (NotifViewHolder.this.adapter.getServiceApiVersion() >= SHARED_IMAGE_API_VERSION) {
+                                img = SharedImage.toBitmap(boundService.getSharedImageForRecommendation(notifKey));
+                            } else {
+                                img = boundService.getImageForRecommendation(notifKey);
+                            }
                         }
                         if (img != null) {
                             return img;
@@ -17,18 +17,33 @@ import com.amazon.tv.tvrecommendations.TvRecommendation;
 import com.amazon.tv.tvrecommendations.IRecommendationsClient;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 
 public abstract class NotificationsServiceAdapter<VH extends ViewHolder> extends NotificationsViewAdapter<VH> {
+    private static final int BATCH_API_VERSION = 2;
+    private static final int CLIENT_API_VERSION = 3;
+    protected static final int SHARED_IMAGE_API_VERSION = 3;
+    private static final long IMPRESSION_BATCH_DELAY_MS = 500;
+    private static final int MAX_IMPRESSION_BATCH = 64;
     private static HandlerThread sHandlerThread;
     private final Handler mBackgroundHandler;
     protected IRecommendationsService mBoundService;
     private final NotifComparator mComparator = new NotifComparator();
+    private final Runnable mFlushImpressionsRunnable = new Runnable() {
+        public void run() {
+            NotificationsServiceAdapter.this.flushImpressions();
+        }
+    };
     private AppTrace.TraceTag mNotificationListenerTraceToken;
     private final NotificationsListener mNotificationsListener;
+    private final ArrayList<String> mPendingImpressionGroups = new ArrayList();
+    private final ArrayList<PendingIntent> mPendingImpressionIntents = new ArrayList();
+    private final ArrayList<Long> mPendingImpressionTimes = new ArrayList();
     private final SwitchingRecommendationsClient mRecommendationClient;
     private RecommendationComparator mRecommendationComparator;
+    private volatile int mServiceApiVersion;
     private AppTrace.TraceTag mServiceConnectTraceToken;
 
     public interface RecommendationComparator extends Comparator<TvRecommendation> {
@@ -176,13 +191,14 @@ public abstract class NotificationsServiceAdapter<VH extends ViewHolder> extends
                 IRecommendationsService boundService = NotificationsServiceAdapter.this.mBoundService;
                 if (boundService != null) {
                     try {
+                        NotificationsServiceAdapter.this.mServiceApiVersion = boundService.getApiVersion();
                         if (NotificationsServiceAdapter.this.isPartnerClient()) {
                             NotificationsServiceAdapter.this.mNotificationListenerTraceToken = AppTrace.beginAsyncSection("registerPartnerRowClient");
-                            boundService.registerPartnerRowClient(NotificationsServiceAdapter.this.mNotificationsListener, 1);
+                            boundService.registerPartnerRowClient(NotificationsServiceAdapter.this.mNotificationsListener, CLIENT_API_VERSION);
                             return;
                         }
                         NotificationsServiceAdapter.this.mNotificationListenerTraceToken = AppTrace.beginAsyncSection("registerRecommendationsClient");
-                        boundService.registerRecommendationsClient(NotificationsServiceAdapter.this.mNotificationsListener, 1);
+                        boundService.registerRecommendationsClient(NotificationsServiceAdapter.this.mNotificationsListener, CLIENT_API_VERSION);
                     } catch (RemoteException e) {
                         Log.e("NotifServiceAdapter", "Exception", e);
                     }
@@ -197,8 +213,13 @@ public abstract class NotificationsServiceAdapter<VH extends ViewHolder> extends
         }
     }
 
+    protected int getServiceApiVersion() {
+        return this.mServiceApiVersion;
+    }
+
     protected void onServiceDisconnected() {
         this.mBoundService = null;
+        this.mServiceApiVersion = 0;
     }
 
     public void onInitUi() {
@@ -213,24 +234,68 @@ public abstract class NotificationsServiceAdapter<VH extends ViewHolder> extends
         return intent == null ? null : intent.getCreatorPackage();
     }
 
-    protected void onActionRecommendationImpression(final PendingIntent intent, final String group) {
-        this.mBackgroundHandler.post(new Runnable() {
-            public void run() {
-                IRecommendationsService boundService = NotificationsServiceAdapter.this.mBoundService;
-                if (boundService != null) {
-                    try {
-                        boundService.onActionRecommendationImpression(NotificationsServiceAdapter.this.getPackageName(intent), group);
-                    } catch (RemoteException e) {
-                        Log.e("NotifServiceAdapter", "RemoteException", e);
-                    }
+    // Impressions come in bursts while the row scrolls, so they are held for a short window and sent
+    // in one transaction. Anything else sent to the service flushes them first to keep the order.
+    protected void onActionRecommendationImpression(PendingIntent intent, String group) {
+        synchronized (this.mPendingImpressionIntents) {
+            this.mPendingImpressionIntents.add(intent);
+            this.mPendingImpressionGroups.add(group);
+            this.mPendingImpressionTimes.add(Long.valueOf(System.currentTimeMillis()));
+            int count = this.mPendingImpressionIntents.size();
+            if (count == 1) {
+                this.mBackgroundHandler.postDelayed(this.mFlushImpressionsRunnable, IMPRESSION_BATCH_DELAY_MS);
+            } else if (count == MAX_IMPRESSION_BATCH) {
+                this.mBackgroundHandler.removeCallbacks(this.mFlushImpressionsRunnable);
+                this.mBackgroundHandler.post(this.mFlushImpressionsRunnable);
+            }
+        }
+    }
+
+    private void flushImpressions() {
+        ArrayList<PendingIntent> intents;
+        ArrayList<String> groups;
+        ArrayList<Long> times;
+        synchronized (this.mPendingImpressionIntents) {
+            this.mBackgroundHandler.removeCallbacks(this.mFlushImpressionsRunnable);
+            if (this.mPendingImpressionIntents.isEmpty()) {
+                return;
+            }
+            intents = new ArrayList(this.mPendingImpressionIntents);
+            groups = new ArrayList(this.mPendingImpressionGroups);
+            times = new ArrayList(this.mPendingImpressionTimes);
+            this.mPendingImpressionIntents.clear();
+            this.mPendingImpressionGroups.clear();
+            this.mPendingImpressionTimes.clear();
+        }
+        IRecommendationsService boundService = this.mBoundService;
+        if (boundService != null) {
+            int count = intents.size();
+            String[] packageNames = new String[count];
+            int[] actions = new int[count];
+            long[] timestamps = new long[count];
+            for (int i = 0; i < count; i++) {
+                packageNames[i] = getPackageName((PendingIntent) intents.get(i));
+                actions[i] = 4;
+                timestamps[i] = ((Long) times.get(i)).longValue();
+            }
+            try {
+                if (this.mServiceApiVersion >= BATCH_API_VERSION) {
+                    boundService.onActionRecommendationImpressionBatch(packageNames, (String[]) groups.toArray(new String[count]), actions, timestamps);
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    boundService.onActionRecommendationImpression(packageNames[i], (String) groups.get(i));
                 }
+            } catch (RemoteException e) {
+                Log.e("NotifServiceAdapter", "RemoteException", e);
             }
-        });
+        }
     }
 
     protected void onActionRecommendationClick(final PendingIntent intent, final String group) {
         this.mBackgroundHandler.post(new Runnable() {
             public void run() {
+                NotificationsServiceAdapter.this.flushImpressions();
                 IRecommendationsService boundService = NotificationsServiceAdapter.this.mBoundService;
                 if (boundService != null) {
                     try {
@@ -251,6 +316,7 @@ public abstract class NotificationsServiceAdapter<VH extends ViewHolder> extends
     public void onStopUi() {
         this.mBackgroundHandler.post(new Runnable() {
             public void run() {
+                NotificationsServiceAdapter.this.flushImpressions();
                 IRecommendationsService boundService = NotificationsServiceAdapter.this.mBoundService;
                 if (boundService != null) {
                     try {
@@ -289,6 +355,7 @@ public abstract class NotificationsServiceAdapter<VH extends ViewHolder> extends
     protected final void serviceOnActionOpenLaunchPoint(final String component, final String group) {
         this.mBackgroundHandler.post(new Runnable() {
             public void run() {
+                NotificationsServiceAdapter.this.flushImpressions();
                 IRecommendationsService boundService = NotificationsServiceAdapter.this.mBoundService;
                 if (boundService != null) {
                     try {
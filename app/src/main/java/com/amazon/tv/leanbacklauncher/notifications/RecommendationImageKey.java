@@ -10,7 +10,9 @@ public class RecommendationImageKey implements Key {
 
     public RecommendationImageKey(TvRecommendation rec) {
         this.mKey = rec.getKey();
-        this.mSignature = rec.getKey() + rec.getTitle() + rec.getText();
+        long imageHash = rec.getContentImageHash();
+        // Equal pixels share one cache entry, whichever recommendation they came with.
+        this.mSignature = imageHash != 0 ? "image:" + Long.toHexString(imageHash) : rec.getKey() + rec.getTitle() + rec.getText();
     }
 
     public String getKey() {
@@ -8,12 +8,14 @@ import android.util.Log;
 
 import com.amazon.tv.leanbacklauncher.recommendations.SwitchingRecommendationsClient;
 import com.amazon.tv.tvrecommendations.IRecommendationsService;
+import com.amazon.tv.tvrecommendations.SharedImage;
 
 public class RecommendationImageLoader {
     private static RecommendationImageLoader sInstance;
     private IRecommendationsService mBoundService;
     private final SwitchingRecommendationsClient mClient;
     private ConditionVariable mServiceBound = new ConditionVariable();
+    private int mServiceApiVersion = -1;
 
     public static RecommendationImageLoader getInstance(Context context) {
         if (sInstance == null) {
@@ -50,7 +52,12 @@ public class RecommendationImageLoader {
         if (service != null) {
             try {
                 Log.w("RecImageLoader", "Obtain bitmap for key: " + key);
-                Bitmap bitmap = service.getImageForRecommendation(key);
+                Bitmap bitmap;
+                if (getServiceApiVersion(service) >= 3) {
+                    bitmap = SharedImage.toBitmap(service.getSharedImageForRecommendation(key));
+                } else {
+                    bitmap = service.getImageForRecommendation(key);
+                }
                 if (bitmap != null) {
                     return bitmap;
                 }
@@ -80,6 +87,22 @@ public class RecommendationImageLoader {
 
     private synchronized void setService(IRecommendationsService service) {
         this.mBoundService = service;
+        this.mServiceApiVersion = -1;
+    }
+
+    private int getServiceApiVersion(IRecommendationsService service) throws RemoteException {
+        synchronized (this) {
+            if (service == this.mBoundService && this.mServiceApiVersion != -1) {
+                return this.mServiceApiVersion;
+            }
+        }
+        int version = service.getApiVersion();
+        synchronized (this) {
+            if (service == this.mBoundService) {
+                this.mServiceApiVersion = version;
+            }
+        }
+        return version;
     }
 
     private synchronized IRecommendationsService getService() {
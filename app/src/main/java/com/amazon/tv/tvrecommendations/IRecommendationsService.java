@@ -222,6 +222,44 @@ public interface IRecommendationsService extends IInterface {
                     _data.recycle();
                 }
             }
+
+            public void onActionRecommendationImpressionBatch(String[] components, String[] groups, int[] actions, long[] timestamps) throws RemoteException {
+                Parcel _data = Parcel.obtain();
+                Parcel _reply = Parcel.obtain();
+                try {
+                    _data.writeInterfaceToken("IRecommendationsService");
+                    _data.writeStringArray(components);
+                    _data.writeStringArray(groups);
+                    _data.writeIntArray(actions);
+                    _data.writeLongArray(timestamps);
+                    this.mRemote.transact(14, _data, _reply, 0);
+                    _reply.readException();
+                } finally {
+                    _reply.recycle();
+                    _data.recycle();
+                }
+            }
+
+            public SharedImage getSharedImageForRecommendation(String key) throws RemoteException {
+                Parcel _data = Parcel.obtain();
+                Parcel _reply = Parcel.obtain();
+                try {
+                    SharedImage _result;
+                    _data.writeInterfaceToken("IRecommendationsService");
+                    _data.writeString(key);
+                    this.mRemote.transact(15, _data, _reply, 0);
+                    _reply.readException();
+                    if (_reply.readInt() != 0) {
+                        _result = (SharedImage) SharedImage.CREATOR.createFromParcel(_reply);
+                    } else {
+                        _result = null;
+                    }
+                    return _result;
+                } finally {
+                    _reply.recycle();
+                    _data.recycle();
+                }
+            }
         }
 
         public Stub() {
@@ -320,6 +358,22 @@ public interface IRecommendationsService extends IInterface {
                     setBlacklistedPackages(data.createStringArray());
                     reply.writeNoException();
                     return true;
+                case 14:
+                    data.enforceInterface("IRecommendationsService");
+                    onActionRecommendationImpressionBatch(data.createStringArray(), data.createStringArray(), data.createIntArray(), data.createLongArray());
+                    reply.writeNoException();
+                    return true;
+                case 15:
+                    data.enforceInterface("IRecommendationsService");
+                    SharedImage _result4 = getSharedImageForRecommendation(data.readString());
+                    reply.writeNoException();
+                    if (_result4 != null) {
+                        reply.writeInt(1);
+                        _result4.writeToParcel(reply, 1);
+                        return true;
+                    }
+                    reply.writeInt(0);
+                    return true;
                 case 1598968902:
                     reply.writeString("IRecommendationsService");
                     return true;
@@ -339,12 +393,16 @@ public interface IRecommendationsService extends IInterface {
 
     String[] getRecommendationsPackages() throws RemoteException;
 
+    SharedImage getSharedImageForRecommendation(String str) throws RemoteException;
+
     void onActionOpenLaunchPoint(String str, String str2) throws RemoteException;
 
     void onActionOpenRecommendation(String str, String str2) throws RemoteException;
 
     void onActionRecommendationImpression(String str, String str2) throws RemoteException;
 
+    void onActionRecommendationImpressionBatch(String[] strArr, String[] strArr2, int[] iArr, long[] jArr) throws RemoteException;
+
     void registerPartnerRowClient(IRecommendationsClient iRecommendationsClient, int i) throws RemoteException;
 
     void registerRecommendationsClient(IRecommendationsClient iRecommendationsClient, int i) throws RemoteException;
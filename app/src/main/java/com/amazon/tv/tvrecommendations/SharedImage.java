@@ -0,0 +1,200 @@
+package com.amazon.tv.tvrecommendations;
+
+import android.graphics.Bitmap;
+import android.os.MemoryFile;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+// Card art passed by file descriptor instead of inline in the transaction. The sender copies the
+// ARGB_8888 pixels once into an ashmem region it keeps for as long as it serves the image, and
+// every parcel only carries the descriptor; the receiver reads the pixels and builds its bitmap on
+// first use. The hash identifies the pixels so callers can dedupe equal images.
+public final class SharedImage implements Parcelable {
+    public static final Creator<SharedImage> CREATOR = new Creator<SharedImage>() {
+        public SharedImage createFromParcel(Parcel parcel) {
+            return new SharedImage(parcel);
+        }
+
+        public SharedImage[] newArray(int size) {
+            return new SharedImage[size];
+        }
+    };
+    private static Method sGetFileDescriptor;
+    private Bitmap mBitmap;
+    private ParcelFileDescriptor mFd;
+    private final long mHash;
+    private final int mHeight;
+    private MemoryFile mMemory;
+    private boolean mOneShot;
+    private final int mWidth;
+
+    private SharedImage(Bitmap bitmap, MemoryFile memory, ParcelFileDescriptor fd, long hash) {
+        this.mBitmap = bitmap;
+        this.mMemory = memory;
+        this.mFd = fd;
+        this.mHash = hash;
+        this.mWidth = bitmap.getWidth();
+        this.mHeight = bitmap.getHeight();
+    }
+
+    SharedImage(Parcel in) {
+        this.mHash = in.readLong();
+        this.mWidth = in.readInt();
+        this.mHeight = in.readInt();
+        if (in.readInt() != 0) {
+            this.mFd = in.readFileDescriptor();
+        }
+    }
+
+    // Copies the bitmap into a new region. The caller owns it and closes it once no parcel is
+    // going to carry it any more.
+    public static SharedImage create(Bitmap bitmap) throws IOException {
+        ByteBuffer pixels = getPixels(bitmap);
+        long hash = hash(pixels, bitmap.getWidth(), bitmap.getHeight());
+        MemoryFile memory = new MemoryFile("rec_image", pixels.limit());
+        try {
+            memory.writeBytes(pixels.array(), pixels.arrayOffset(), 0, pixels.limit());
+            return new SharedImage(bitmap, memory, ParcelFileDescriptor.dup(getFileDescriptor(memory)), hash);
+        } catch (IOException e) {
+            memory.close();
+            throw e;
+        }
+    }
+
+    // The bitmap alone, for callers in this process, which get the object itself. Parceled, it goes
+    // out without pixels.
+    public static SharedImage fromBitmap(Bitmap bitmap) {
+        return bitmap == null ? null : new SharedImage(bitmap, null, null, 0);
+    }
+
+    // A region that closes itself once written as a binder return value, for images nobody keeps.
+    public static SharedImage createOneShot(Bitmap bitmap) throws IOException {
+        SharedImage image = create(bitmap);
+        image.mOneShot = true;
+        return image;
+    }
+
+    public static Bitmap toBitmap(SharedImage image) {
+        return image == null ? null : image.getBitmap();
+    }
+
+    // Parcels only duplicate the descriptor, the region stays open until close().
+    public synchronized void writeToParcel(Parcel out, int flags) {
+        out.writeLong(this.mHash);
+        out.writeInt(this.mWidth);
+        out.writeInt(this.mHeight);
+        if (this.mFd != null) {
+            out.writeInt(1);
+            out.writeFileDescriptor(this.mFd.getFileDescriptor());
+            if (this.mOneShot && (flags & PARCELABLE_WRITE_RETURN_VALUE) != 0) {
+                close();
+            }
+            return;
+        }
+        out.writeInt(0);
+    }
+
+    public int describeContents() {
+        return 1;
+    }
+
+    public int getWidth() {
+        return this.mWidth;
+    }
+
+    public int getHeight() {
+        return this.mHeight;
+    }
+
+    public long getHash() {
+        return this.mHash;
+    }
+
+    public synchronized Bitmap getBitmap() {
+        if (this.mBitmap == null && this.mFd != null) {
+            FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(this.mFd);
+            this.mFd = null;
+            try {
+                // ashmem can't be mapped through a FileChannel, and the offset of the descriptor is
+                // shared with every other holder of the region, so read at explicit positions
+                ByteBuffer pixels = ByteBuffer.allocate(this.mWidth * this.mHeight * 4);
+                FileChannel channel = in.getChannel();
+                while (pixels.hasRemaining()) {
+                    if (channel.read(pixels, (long) pixels.position()) <= 0) {
+                        throw new IOException("Shared image truncated at " + pixels.position() + " of " + pixels.capacity() + " bytes");
+                    }
+                }
+                pixels.rewind();
+                Bitmap bitmap = Bitmap.createBitmap(this.mWidth, this.mHeight, Bitmap.Config.ARGB_8888);
+                bitmap.copyPixelsFromBuffer(pixels);
+                this.mBitmap = bitmap;
+            } catch (IOException e) {
+                Log.e("SharedImage", "Cannot read shared image", e);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e2) {
+                }
+            }
+        }
+        return this.mBitmap;
+    }
+
+    // Releases the region. Parcels already written hold their own descriptors; later ones go out
+    // without an image.
+    public synchronized void close() {
+        if (this.mFd != null) {
+            try {
+                this.mFd.close();
+            } catch (IOException e) {
+            }
+            this.mFd = null;
+        }
+        if (this.mMemory != null) {
+            this.mMemory.close();
+            this.mMemory = null;
+        }
+    }
+
+    // MemoryFile keeps its descriptor to itself before API 27.
+    private static FileDescriptor getFileDescriptor(MemoryFile memory) throws IOException {
+        try {
+            if (sGetFileDescriptor == null) {
+                sGetFileDescriptor = MemoryFile.class.getDeclaredMethod("getFileDescriptor");
+                sGetFileDescriptor.setAccessible(true);
+            }
+            return (FileDescriptor) sGetFileDescriptor.invoke(memory);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Cannot get the descriptor of a memory file", e);
+        }
+    }
+
+    private static ByteBuffer getPixels(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888 || bitmap.getByteCount() != width * height * 4) {
+            bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        ByteBuffer pixels = ByteBuffer.allocate(width * height * 4);
+        bitmap.copyPixelsToBuffer(pixels);
+        pixels.rewind();
+        return pixels;
+    }
+
+    private static long hash(ByteBuffer pixels, int width, int height) {
+        CRC32 crc = new CRC32();
+        crc.update(pixels.array(), pixels.arrayOffset(), pixels.limit());
+        long hash = (crc.getValue() << 32) | (((long) (width & 65535)) << 16) | ((long) (height & 65535));
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -16,10 +16,13 @@ public final class TvRecommendation implements Parcelable {
             return new TvRecommendation[size];
         }
     };
+    // Stands where the inline Bitmap parcelable would start; a parcelable is never introduced by a
+    // negative class name length, so readers can tell the two forms apart.
+    private static final int SHARED_IMAGE = -2;
     private final boolean mAutoDismiss;
     private final String mBackgroundImageUri;
     private final int mColor;
-    private final Bitmap mContentImage;
+    private Bitmap mContentImage;
     private final PendingIntent mContentIntent;
     private final String mGroup;
     private final int mHeight;
@@ -31,6 +34,7 @@ public final class TvRecommendation implements Parcelable {
     private final int mProgressMax;
     private final String mReplacedPackageName;
     private final double mScore;
+    private final SharedImage mSharedImage;
     private final String mSortKey;
     private final CharSequence mSourceName;
     private final CharSequence mText;
@@ -58,6 +62,31 @@ public final class TvRecommendation implements Parcelable {
         this.mProgress = progress;
         this.mScore = score;
         this.mReplacedPackageName = replacedPackageName;
+        this.mSharedImage = null;
+    }
+
+    private TvRecommendation(TvRecommendation rec, Bitmap image, SharedImage sharedImage) {
+        this.mPackageName = rec.mPackageName;
+        this.mKey = rec.mKey;
+        this.mPostTime = rec.mPostTime;
+        this.mGroup = rec.mGroup;
+        this.mSortKey = rec.mSortKey;
+        this.mContentIntent = rec.mContentIntent;
+        this.mAutoDismiss = rec.mAutoDismiss;
+        this.mWidth = rec.mWidth;
+        this.mHeight = rec.mHeight;
+        this.mColor = rec.mColor;
+        this.mContentImage = image;
+        this.mBackgroundImageUri = rec.mBackgroundImageUri;
+        this.mTitle = rec.mTitle;
+        this.mText = rec.mText;
+        this.mSourceName = rec.mSourceName;
+        this.mIconResourceId = rec.mIconResourceId;
+        this.mProgressMax = rec.mProgressMax;
+        this.mProgress = rec.mProgress;
+        this.mScore = rec.mScore;
+        this.mReplacedPackageName = rec.mReplacedPackageName;
+        this.mSharedImage = sharedImage;
     }
 
     TvRecommendation(Parcel in) {
@@ -72,7 +101,14 @@ public final class TvRecommendation implements Parcelable {
         this.mWidth = in.readInt();
         this.mHeight = in.readInt();
         this.mColor = in.readInt();
-        this.mContentImage = (Bitmap) in.readParcelable(classLoader);
+        int position = in.dataPosition();
+        if (in.readInt() == SHARED_IMAGE) {
+            this.mSharedImage = (SharedImage) SharedImage.CREATOR.createFromParcel(in);
+        } else {
+            in.setDataPosition(position);
+            this.mContentImage = (Bitmap) in.readParcelable(classLoader);
+            this.mSharedImage = null;
+        }
         this.mBackgroundImageUri = in.readString();
         this.mTitle = (CharSequence) TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in);
         this.mText = (CharSequence) TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in);
@@ -95,7 +131,12 @@ public final class TvRecommendation implements Parcelable {
         out.writeInt(this.mWidth);
         out.writeInt(this.mHeight);
         out.writeInt(this.mColor);
-        out.writeParcelable(this.mContentImage, flags);
+        if (this.mSharedImage != null) {
+            out.writeInt(SHARED_IMAGE);
+            this.mSharedImage.writeToParcel(out, flags);
+        } else {
+            out.writeParcelable(this.mContentImage, flags);
+        }
         out.writeString(this.mBackgroundImageUri);
         TextUtils.writeToParcel(this.mTitle, out, 0);
         TextUtils.writeToParcel(this.mText, out, 0);
@@ -108,7 +149,24 @@ public final class TvRecommendation implements Parcelable {
     }
 
     public int describeContents() {
-        return 0;
+        return this.mSharedImage != null ? 1 : 0;
+    }
+
+    // The same recommendation, parceled with its content image passed by file descriptor. Only for
+    // clients that registered with API version 3 or later; the region belongs to the caller.
+    public synchronized TvRecommendation withSharedContentImage(SharedImage image) {
+        if (image == null || this.mSharedImage != null || this.mContentImage == null) {
+            return this;
+        }
+        return new TvRecommendation(this, this.mContentImage, image);
+    }
+
+    // The same recommendation without its content image, for removals, which clients match by key.
+    public synchronized TvRecommendation withoutContentImage() {
+        if (this.mContentImage == null && this.mSharedImage == null) {
+            return this;
+        }
+        return new TvRecommendation(this, null, null);
     }
 
     public String getPackageName() {
@@ -147,10 +205,17 @@ public final class TvRecommendation implements Parcelable {
         return this.mColor;
     }
 
-    public Bitmap getContentImage() {
+    public synchronized Bitmap getContentImage() {
+        if (this.mContentImage == null && this.mSharedImage != null) {
+            this.mContentImage = this.mSharedImage.getBitmap();
+        }
         return this.mContentImage;
     }
 
+    public long getContentImageHash() {
+        return this.mSharedImage != null ? this.mSharedImage.getHash() : 0;
+    }
+
     public String getBackgroundImageUri() {
         return this.mBackgroundImageUri;
     }
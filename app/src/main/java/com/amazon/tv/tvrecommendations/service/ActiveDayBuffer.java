@@ -1,65 +1,289 @@
 package com.amazon.tv.tvrecommendations.service;
 
-import android.util.SparseArray;
 import java.util.Date;
 
 class ActiveDayBuffer {
-    protected final SparseArray<Signals> mBuffer;
+    private int mClickSum;
+    private final int[] mClicks;
+    private int mCount;
+    private double mDecayHalfLife;
+    private int mDecayDay = -1;
+    private double mDecayedClicks;
+    private double mDecayedImpressions;
+    private final int[] mDays;
     protected boolean mDirty = true;
+    protected long mDirtySlots;
+    private int mHead = -1;
+    private int mImpressionSum;
+    private final int[] mImpressions;
     protected final int mLength;
     protected double mScore = -1.0d;
 
     public ActiveDayBuffer(int length) {
+        if (length > 64) {
+            throw new IllegalArgumentException("ActiveDayBuffer length must not exceed 64: " + length);
+        }
         this.mLength = length;
-        this.mBuffer = new SparseArray(length + 1);
+        this.mDays = new int[length];
+        this.mClicks = new int[length];
+        this.mImpressions = new int[length];
+        for (int i = 0; i < length; i++) {
+            this.mDays[i] = -1;
+        }
     }
 
     public void set(Date date, Signals value) {
-        this.mBuffer.put(DateUtil.getDay(date), value);
-        while (this.mBuffer.size() > this.mLength) {
-            this.mBuffer.removeAt(0);
+        set(DateUtil.getDay(date), value);
+    }
+
+    public void set(int day, Signals value) {
+        int slot = findSlot(day);
+        if (slot == -1) {
+            slot = insertSlot(day);
+            if (slot == -1) {
+                return;
+            }
+        }
+        writeSlot(slot, day, value.mClicks, value.mImpressions);
+    }
+
+    public void add(int day, int clicks, int impressions) {
+        int slot = findSlot(day);
+        if (slot == -1) {
+            slot = insertSlot(day);
+            if (slot == -1) {
+                return;
+            }
+        }
+        writeSlot(slot, day, this.mClicks[slot] + clicks, this.mImpressions[slot] + impressions);
+    }
+
+    public void setAt(int slot, int day, int clicks, int impressions) {
+        if (slot < 0 || slot >= this.mLength || day == -1) {
+            return;
+        }
+        writeSlot(slot, day, clicks, impressions);
+        this.mCount = 0;
+        this.mHead = -1;
+        for (int i = 0; i < this.mLength; i++) {
+            if (this.mDays[i] != -1) {
+                this.mCount++;
+                if (this.mHead == -1 || this.mDays[i] > this.mDays[this.mHead]) {
+                    this.mHead = i;
+                }
+            }
+        }
+    }
+
+    private void writeSlot(int slot, int day, int clicks, int impressions) {
+        if (this.mDays[slot] != -1) {
+            this.mClickSum -= this.mClicks[slot];
+            this.mImpressionSum -= this.mImpressions[slot];
+            addDecayed(this.mDays[slot], -this.mClicks[slot], -this.mImpressions[slot]);
         }
+        this.mDays[slot] = day;
+        this.mClicks[slot] = clicks;
+        this.mImpressions[slot] = impressions;
+        this.mClickSum += clicks;
+        this.mImpressionSum += impressions;
+        addDecayed(day, clicks, impressions);
+        this.mDirtySlots |= 1L << slot;
         this.mDirty = true;
     }
 
+    private void clearSlot(int slot) {
+        if (this.mDays[slot] != -1) {
+            this.mClickSum -= this.mClicks[slot];
+            this.mImpressionSum -= this.mImpressions[slot];
+            addDecayed(this.mDays[slot], -this.mClicks[slot], -this.mImpressions[slot]);
+            this.mDays[slot] = -1;
+            this.mClicks[slot] = 0;
+            this.mImpressions[slot] = 0;
+        }
+    }
+
+    // Decayed sums are weighted relative to the most recent day seen, so a new day rescales them
+    // once instead of reweighting every slot.
+    private void addDecayed(int day, int clicks, int impressions) {
+        if (this.mDecayHalfLife != 0.0d) {
+            if (this.mDecayDay == -1 || day > this.mDecayDay) {
+                if (this.mDecayDay != -1) {
+                    double scale = DecayedSignalsAggregator.weight(day - this.mDecayDay, this.mDecayHalfLife);
+                    this.mDecayedClicks *= scale;
+                    this.mDecayedImpressions *= scale;
+                }
+                this.mDecayDay = day;
+            }
+            double weight = DecayedSignalsAggregator.weight(this.mDecayDay - day, this.mDecayHalfLife);
+            this.mDecayedClicks += ((double) clicks) * weight;
+            this.mDecayedImpressions += ((double) impressions) * weight;
+        }
+    }
+
+    private double getDecayedCtr(double halfLife) {
+        if (halfLife != this.mDecayHalfLife) {
+            this.mDecayHalfLife = halfLife;
+            this.mDecayDay = -1;
+            this.mDecayedClicks = 0.0d;
+            this.mDecayedImpressions = 0.0d;
+            for (int age = this.mCount - 1; age >= 0; age--) {
+                int slot = slotAt(age);
+                addDecayed(this.mDays[slot], this.mClicks[slot], this.mImpressions[slot]);
+            }
+        }
+        // Removals subtract what was added, which may leave rounding residue where nothing is left.
+        double clicks = this.mClickSum == 0 ? 0.0d : Math.max(this.mDecayedClicks, 0.0d);
+        double impressions = this.mImpressionSum == 0 ? 0.0d : Math.max(this.mDecayedImpressions, 0.0d);
+        return SignalsAggregator.getCtr(clicks, impressions);
+    }
+
+    private int slotAt(int age) {
+        return ((this.mHead - age) + this.mLength) % this.mLength;
+    }
+
+    private int findSlot(int day) {
+        for (int age = 0; age < this.mCount; age++) {
+            int slot = slotAt(age);
+            if (this.mDays[slot] == day) {
+                return slot;
+            }
+            if (this.mDays[slot] < day) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    // Days are kept in ascending order around the ring, ending at mHead. A new most recent day
+    // takes the slot after the head, which is either empty or holds the oldest day.
+    private int insertSlot(int day) {
+        if (this.mCount == 0 || day > this.mDays[this.mHead]) {
+            this.mHead = (this.mHead + 1) % this.mLength;
+            clearSlot(this.mHead);
+            if (this.mCount < this.mLength) {
+                this.mCount++;
+            }
+            return this.mHead;
+        }
+        int age = 0;
+        while (age < this.mCount && this.mDays[slotAt(age)] > day) {
+            age++;
+        }
+        if (age == this.mCount && this.mCount == this.mLength) {
+            return -1;
+        }
+        if (this.mCount == this.mLength) {
+            clearSlot(slotAt(this.mCount - 1));
+            this.mCount--;
+        }
+        this.mHead = (this.mHead + 1) % this.mLength;
+        this.mCount++;
+        for (int i = 0; i < age; i++) {
+            int to = slotAt(i);
+            int from = slotAt(i + 1);
+            this.mDays[to] = this.mDays[from];
+            this.mClicks[to] = this.mClicks[from];
+            this.mImpressions[to] = this.mImpressions[from];
+            this.mDirtySlots |= 1L << to;
+        }
+        int slot = slotAt(age);
+        this.mDays[slot] = -1;
+        this.mClicks[slot] = 0;
+        this.mImpressions[slot] = 0;
+        return slot;
+    }
+
+    public long getDirtySlots() {
+        return this.mDirtySlots;
+    }
+
+    public boolean isSlotDirty(int index) {
+        return (this.mDirtySlots & (1L << index)) != 0;
+    }
+
+    public void markDirtySlots() {
+        this.mDirtySlots = this.mLength == 64 ? -1 : (1L << this.mLength) - 1;
+    }
+
+    public void clearDirtySlots() {
+        this.mDirtySlots = 0;
+    }
+
     public int size() {
         return this.mLength;
     }
 
     public Signals get(Date date) {
-        return (Signals) this.mBuffer.get(DateUtil.getDay(date));
+        return get(DateUtil.getDay(date));
+    }
+
+    public Signals get(int day) {
+        int slot = findSlot(day);
+        if (slot == -1) {
+            return null;
+        }
+        return new Signals(this.mClicks[slot], this.mImpressions[slot]);
     }
 
     public Signals getAt(int index) {
-        if (index < 0 || index >= this.mBuffer.size()) {
+        if (index < 0 || index >= this.mLength || this.mDays[index] == -1) {
             return null;
         }
-        return (Signals) this.mBuffer.valueAt(index);
+        return new Signals(this.mClicks[index], this.mImpressions[index]);
     }
 
     public int getDayAt(int index) {
-        if (index < 0 || index >= this.mBuffer.size()) {
+        if (index < 0 || index >= this.mLength) {
             return -1;
         }
-        return this.mBuffer.keyAt(index);
+        return this.mDays[index];
+    }
+
+    public int getClicksAt(int index) {
+        return this.mClicks[index];
+    }
+
+    public int getImpressionsAt(int index) {
+        return this.mImpressions[index];
+    }
+
+    public int getClickSum() {
+        return this.mClickSum;
+    }
+
+    public int getImpressionSum() {
+        return this.mImpressionSum;
     }
 
     public boolean hasData() {
-        return this.mBuffer.size() > 0;
+        return this.mCount > 0;
     }
 
     public double getAggregatedScore(Aggregator<Signals> aggregator) {
+        if (this.mCount == 0) {
+            return Ranker.getGroupStarterScore();
+        }
+        if (aggregator instanceof SignalsAggregator) {
+            return SignalsAggregator.getCtr(this.mClickSum, this.mImpressionSum);
+        }
+        if (aggregator instanceof DecayedSignalsAggregator) {
+            return getDecayedCtr(((DecayedSignalsAggregator) aggregator).getHalfLifeDays());
+        }
         if (!this.mDirty) {
             return this.mScore;
         }
         aggregator.reset();
-        if (this.mBuffer.size() == 0) {
-            this.mScore = Ranker.getGroupStarterScore();
-            this.mDirty = false;
-            return this.mScore;
-        }
-        for (int i = 0; i < this.mBuffer.size(); i++) {
-            aggregator.add(DateUtil.getDate(this.mBuffer.keyAt(i)), this.mBuffer.valueAt(i));
+        if (aggregator instanceof SignalsDayAggregator) {
+            SignalsDayAggregator dayAggregator = (SignalsDayAggregator) aggregator;
+            for (int age = this.mCount - 1; age >= 0; age--) {
+                int slot = slotAt(age);
+                dayAggregator.add(this.mDays[slot], this.mClicks[slot], this.mImpressions[slot]);
+            }
+        } else {
+            for (int age = this.mCount - 1; age >= 0; age--) {
+                int slot = slotAt(age);
+                aggregator.add(DateUtil.getDate(this.mDays[slot]), new Signals(this.mClicks[slot], this.mImpressions[slot]));
+            }
         }
         this.mScore = aggregator.getAggregatedScore();
         this.mDirty = false;
@@ -5,26 +5,58 @@ import android.app.usage.UsageStatsManager;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.AsyncTask;
 import android.os.Environment;
 import android.util.ArrayMap;
+import android.util.Log;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
+// Scores are read from an immutable snapshot that a background task replaces every half hour, so
+// scoring never waits for the usage stats service.
 class AppUsageStatistics {
     private static boolean DEBUG = false;
     private static String TAG = "AppUsageStatistics";
     private static String mPrivilegedAppDir;
-    private ArrayMap<String, Double> mAppUsageScore = null;
     private Context mContext;
-    private long mLastGetAppUsageAdjustmentCall = 0;
+    private long mLastRefresh = 0;
+    private Set<String> mPrivApps;
+    private int mPrivAppsGeneration;
+    private boolean mRefreshing;
+    private volatile Snapshot mSnapshot = new Snapshot(new ArrayMap(), 0);
     private UsageStatsManager mUsageStatsManager;
 
+    private static class Snapshot {
+        final int generation;
+        final ArrayMap<String, Double> scores;
+
+        Snapshot(ArrayMap<String, Double> scores, int generation) {
+            this.scores = scores;
+            this.generation = generation;
+        }
+    }
+
+    private class RefreshTask extends AsyncTask<Void, Void, Void> {
+        private RefreshTask() {
+        }
+
+        protected Void doInBackground(Void... params) {
+            ArrayMap<String, Double> scores = null;
+            try {
+                scores = AppUsageStatistics.this.getAppUsageAdjustments();
+            } catch (RuntimeException e) {
+                Log.e(AppUsageStatistics.TAG, "Cannot query app usage", e);
+            }
+            AppUsageStatistics.this.publish(scores);
+            return null;
+        }
+    }
+
     AppUsageStatistics(Context context) {
         this.mContext = context;
         this.mUsageStatsManager = (UsageStatsManager) context.getSystemService("usagestats");
@@ -32,34 +64,73 @@ class AppUsageStatistics {
             mPrivilegedAppDir = new File(Environment.getRootDirectory(), "priv-app").getCanonicalPath();
         } catch (IOException e) {
         }
+        refreshIfStale();
     }
 
-    public double getAppUsageScore(String packageName) {
-        long now = System.currentTimeMillis();
-        if (this.mAppUsageScore == null || this.mLastGetAppUsageAdjustmentCall == 0 || now > this.mLastGetAppUsageAdjustmentCall + 1800000) {
-            this.mAppUsageScore = getAppUsageAdjustments();
-            this.mLastGetAppUsageAdjustmentCall = now;
+    public int getGeneration() {
+        refreshIfStale();
+        return this.mSnapshot.generation;
+    }
+
+    private void refreshIfStale() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (this.mRefreshing || (this.mLastRefresh != 0 && now <= this.mLastRefresh + 1800000)) {
+                return;
+            }
+            this.mRefreshing = true;
         }
-        if (this.mAppUsageScore.size() <= 0) {
+        new RefreshTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, new Void[0]);
+    }
+
+    // A failed query keeps the previous scores until the next refresh is due.
+    private void publish(ArrayMap<String, Double> scores) {
+        synchronized (this) {
+            if (scores != null) {
+                this.mSnapshot = new Snapshot(scores, this.mSnapshot.generation + 1);
+            }
+            this.mLastRefresh = System.currentTimeMillis();
+            this.mRefreshing = false;
+        }
+    }
+
+    public double getAppUsageScore(String packageName) {
+        refreshIfStale();
+        ArrayMap<String, Double> scores = this.mSnapshot.scores;
+        if (scores.size() <= 0) {
             return 0.0d;
         }
-        Double v = (Double) this.mAppUsageScore.get(packageName);
+        Double v = (Double) scores.get(packageName);
         if (v != null) {
             return v.doubleValue();
         }
         return 0.0d;
     }
 
-    private ArrayList<String> getInstalledPrivApps() {
-        ArrayList<String> privApps = new ArrayList();
-        PackageManager pm = this.mContext.getPackageManager();
-        for (PackageInfo pi : pm.getInstalledPackages(0)) {
-            try {
-                ApplicationInfo ai = pm.getApplicationInfo(pi.packageName, 0);
-                if ((ai.flags & 1) != 0 && locationIsPrivileged(ai.publicSourceDir)) {
-                    privApps.add(pi.packageName);
-                }
-            } catch (NameNotFoundException e) {
+    // Package broadcasts drop the cached set; a scan that raced with one is not kept.
+    public synchronized void invalidatePrivilegedApps() {
+        this.mPrivApps = null;
+        this.mPrivAppsGeneration++;
+    }
+
+    private Set<String> getInstalledPrivApps() {
+        int generation;
+        synchronized (this) {
+            if (this.mPrivApps != null) {
+                return this.mPrivApps;
+            }
+            generation = this.mPrivAppsGeneration;
+        }
+        HashSet<String> privApps = new HashSet();
+        for (PackageInfo pi : this.mContext.getPackageManager().getInstalledPackages(0)) {
+            ApplicationInfo ai = pi.applicationInfo;
+            if (ai != null && (ai.flags & 1) != 0 && ai.publicSourceDir != null && locationIsPrivileged(ai.publicSourceDir)) {
+                privApps.add(pi.packageName);
+            }
+        }
+        synchronized (this) {
+            if (generation == this.mPrivAppsGeneration) {
+                this.mPrivApps = privApps;
             }
         }
         return privApps;
@@ -15,7 +15,10 @@ import android.util.Log;
 
 import com.amazon.tv.tvrecommendations.IRecommendationsClient;
 import com.amazon.tv.tvrecommendations.IRecommendationsService.Stub;
+import com.amazon.tv.tvrecommendations.SharedImage;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
 public abstract class BaseRecommendationsService extends Service {
@@ -26,27 +29,27 @@ public abstract class BaseRecommendationsService extends Service {
     private final RankerParametersFactory mRankerParametersFactory;
     private Stub mServiceStub = new Stub() {
         public int getApiVersion() {
-            return 1;
+            return 3;
         }
 
         public void registerRecommendationsClient(IRecommendationsClient client, int version) throws RemoteException {
             if (version < 1) {
                 throw new RemoteException("Unsupported client version: " + version);
             }
-            registerRecommendationsClient(client, false);
+            registerRecommendationsClient(client, false, version);
         }
 
         public void registerPartnerRowClient(IRecommendationsClient client, int version) throws RemoteException {
             if (version < 1) {
                 throw new RemoteException("Unsupported client version: " + version);
             }
-            registerRecommendationsClient(client, true);
+            registerRecommendationsClient(client, true, version);
         }
 
-        private synchronized void registerRecommendationsClient(IRecommendationsClient client, boolean isPartnerClient) throws RemoteException {
+        private synchronized void registerRecommendationsClient(IRecommendationsClient client, boolean isPartnerClient, int version) throws RemoteException {
             if (client != null) {
                 // if (BaseRecommendationsService.this.isSystemUid(Binder.getCallingUid())) {
-                BaseRecommendationsService.this.mManager.registerNotificationsClient(client, isPartnerClient);
+                BaseRecommendationsService.this.mManager.registerNotificationsClient(client, isPartnerClient, version);
                 if (BaseRecommendationsService.this.mManager.isConnectedToNotificationService()) {
                     client.onServiceStatusChanged(true);
                 }
@@ -76,6 +79,10 @@ public abstract class BaseRecommendationsService extends Service {
             return BaseRecommendationsService.this.mManager.getRecomendationImage(key);
         }
 
+        public SharedImage getSharedImageForRecommendation(String key) {
+            return BaseRecommendationsService.this.mManager.getSharedRecommendationImage(key);
+        }
+
         public void onActionOpenLaunchPoint(String component, String group) {
             BaseRecommendationsService.this.mManager.onActionOpenLaunchPoint(component, group);
         }
@@ -88,6 +95,17 @@ public abstract class BaseRecommendationsService extends Service {
             BaseRecommendationsService.this.mManager.onActionRecommendationImpression(component, group);
         }
 
+        public void onActionRecommendationImpressionBatch(String[] components, String[] groups, int[] actions, long[] timestamps) {
+            if (components == null || groups == null || actions == null || timestamps == null) {
+                return;
+            }
+            int count = components.length;
+            if (groups.length != count || actions.length != count || timestamps.length != count) {
+                throw new IllegalArgumentException("Mismatched action batch");
+            }
+            BaseRecommendationsService.this.mManager.onActions(components, groups, actions, timestamps);
+        }
+
         public String[] getRecommendationsPackages() {
             List<String> list = BaseRecommendationsService.this.mManager.getRecommendationsPackages();
             return (String[]) list.toArray(new String[list.size()]);
@@ -126,6 +144,7 @@ public abstract class BaseRecommendationsService extends Service {
 
     public void onDestroy() {
         super.onDestroy();
+        this.mManager.saveRankingSnapshot();
         //if (this.mGoogleApiClient != null) {
         this.mEventLogger.flush();
         //    this.mGoogleApiClient.disconnect();
@@ -133,6 +152,11 @@ public abstract class BaseRecommendationsService extends Service {
         //}
     }
 
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        this.mManager.dump("", writer);
+        DbHelper.getInstance(this).dump("", writer);
+    }
+
     private boolean isSystemUid(int uid) {
         PackageManager pm = getPackageManager();
         String[] packages = pm.getPackagesForUid(uid);
@@ -2,7 +2,9 @@ package com.amazon.tv.tvrecommendations.service;
 
 class Bucket {
     private ActiveDayBuffer mBuffer = new ActiveDayBuffer(14);
+    private double mPublishedScore;
     private long mTimeStamp;
+    private boolean mTimeStampDirty = true;
 
     public Bucket(long timestamp) {
         this.mTimeStamp = timestamp;
@@ -14,13 +16,44 @@ class Bucket {
 
     public void setTimestamp(long time) {
         this.mTimeStamp = time;
+        this.mTimeStampDirty = true;
     }
 
     public void updateTimestamp() {
         this.mTimeStamp = System.currentTimeMillis();
+        this.mTimeStampDirty = true;
     }
 
     public ActiveDayBuffer getBuffer() {
         return this.mBuffer;
     }
+
+    public double getPublishedScore() {
+        return this.mPublishedScore;
+    }
+
+    public void resetPublishedScore() {
+        this.mPublishedScore = 0.0d;
+    }
+
+    public double updatePublishedScore(Aggregator<Signals> aggregator) {
+        double score = this.mBuffer.hasData() ? this.mBuffer.getAggregatedScore(aggregator) : 0.0d;
+        double delta = score - this.mPublishedScore;
+        this.mPublishedScore = score;
+        return delta;
+    }
+
+    public boolean isTimestampDirty() {
+        return this.mTimeStampDirty;
+    }
+
+    public void markDirty() {
+        this.mTimeStampDirty = true;
+        this.mBuffer.markDirtySlots();
+    }
+
+    public void clearDirty() {
+        this.mTimeStampDirty = false;
+        this.mBuffer.clearDirtySlots();
+    }
 }
@@ -0,0 +1,84 @@
+package com.amazon.tv.tvrecommendations.service;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.service.notification.StatusBarNotification;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.amazon.tv.leanbacklauncher.BuildConfig;
+
+import java.util.HashSet;
+
+class CaptivePortalTracker {
+    private static String TAG = "CaptivePortalTracker";
+    private static CaptivePortalTracker sInstance = null;
+    private final HashSet<Network> mCaptivePortalNetworks = new HashSet();
+    private volatile boolean mHasCaptivePortal;
+    private final NetworkCallback mNetworkCallback = new NetworkCallback() {
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            update(network, capabilities != null && capabilities.hasCapability(17));
+        }
+
+        public void onLost(Network network) {
+            update(network, false);
+        }
+    };
+
+    public static CaptivePortalTracker getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (CaptivePortalTracker.class) {
+                if (sInstance == null) {
+                    sInstance = new CaptivePortalTracker(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private CaptivePortalTracker(Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService("connectivity");
+        synchronized (this.mCaptivePortalNetworks) {
+            for (Network network : connectivityManager.getAllNetworks()) {
+                NetworkInfo info = connectivityManager.getNetworkInfo(network);
+                NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+                if (info != null && info.isConnected() && capabilities != null && capabilities.hasCapability(17)) {
+                    this.mCaptivePortalNetworks.add(network);
+                }
+            }
+            this.mHasCaptivePortal = !this.mCaptivePortalNetworks.isEmpty();
+        }
+        connectivityManager.registerNetworkCallback(new NetworkRequest.Builder().build(), this.mNetworkCallback);
+    }
+
+    private void update(Network network, boolean captivePortal) {
+        synchronized (this.mCaptivePortalNetworks) {
+            if (captivePortal) {
+                this.mCaptivePortalNetworks.add(network);
+            } else {
+                this.mCaptivePortalNetworks.remove(network);
+            }
+            boolean hasCaptivePortal = !this.mCaptivePortalNetworks.isEmpty();
+            if (hasCaptivePortal != this.mHasCaptivePortal) {
+                if (BuildConfig.DEBUG) Log.d(TAG, "captive portal network " + (hasCaptivePortal ? "connected" : "gone"));
+                this.mHasCaptivePortal = hasCaptivePortal;
+            }
+        }
+    }
+
+    public boolean isCaptivePortal(StatusBarNotification sbn) {
+        String tag = sbn.getTag();
+        if (TextUtils.equals(tag, "CaptivePortal.Notification")) {
+            return true;
+        }
+        if (TextUtils.equals(tag, "Connectivity.Notification") || (!TextUtils.isEmpty(tag) && tag.startsWith("ConnectivityNotification:"))) {
+            return this.mHasCaptivePortal;
+        }
+        return false;
+    }
+}
@@ -2,27 +2,54 @@ package com.amazon.tv.tvrecommendations.service;
 
 import android.content.Context;
 import android.preference.PreferenceManager;
-import java.util.Calendar;
 import java.util.Date;
+import java.util.TimeZone;
 
 class DateUtil {
+    static final long DAY_MS = 86400000;
+    private static final long OFFSET_CACHE_MS = 3600000;
+    private static int sOffset;
+    private static long sOffsetValidFrom = Long.MAX_VALUE;
+    private static long sOffsetValidUntil = Long.MIN_VALUE;
+
     public static int getDay(Date date) {
         if (date == null) {
             return -1;
         }
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(date);
-        return (cal.get(1) * 1000) + cal.get(6);
+        return getDay(date.getTime());
+    }
+
+    public static int getDay(long time) {
+        long localTime = time + getOffset(time);
+        long day = localTime / DAY_MS;
+        if (localTime % DAY_MS < 0) {
+            day--;
+        }
+        return (int) day;
     }
 
     public static Date getDate(int day) {
         if (day == -1) {
             return null;
         }
-        Calendar cal = Calendar.getInstance();
-        cal.set(1, day / 1000);
-        cal.set(6, day % 1000);
-        return cal.getTime();
+        long time = ((long) day) * DAY_MS;
+        return new Date(time - getOffset(time));
+    }
+
+    private static synchronized long getOffset(long time) {
+        if (time < sOffsetValidFrom || time >= sOffsetValidUntil) {
+            sOffset = TimeZone.getDefault().getOffset(time);
+            sOffsetValidFrom = time - (time % OFFSET_CACHE_MS);
+            sOffsetValidUntil = sOffsetValidFrom + OFFSET_CACHE_MS;
+        }
+        return (long) sOffset;
+    }
+
+    static void invalidateTimeZone() {
+        synchronized (DateUtil.class) {
+            sOffsetValidFrom = Long.MAX_VALUE;
+            sOffsetValidUntil = Long.MIN_VALUE;
+        }
     }
 
     public static boolean initialRankingApplied(Context ctx) {
@@ -6,37 +6,74 @@ import android.content.Context;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import com.amazon.tv.leanbacklauncher.R;
 
-import java.io.EOFException;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 
 public class DbHelper extends SQLiteOpenHelper {
     private static boolean DEBUG = false;
     private static String TAG = "DbHelper";
+    private static final long FLUSH_DELAY_MS = 5000;
+    // One pass over all four tables, grouped by key so each entity is complete before the next
+    // starts. Packages that post recommendations or have CTR buckets come first (tail = 0).
+    private static final String LOAD_ENTITIES_QUERY = "SELECT t.top IS NULL AS tail, r.kind, r.key, r.name, r.a, r.b, r.c, r.d FROM ("
+            + "SELECT 0 AS kind, key, NULL AS name, notif_bonus AS a, bonus_timestamp AS b, oob_order AS c, has_recs AS d FROM entity"
+            + " UNION ALL SELECT 1, key, component, entity_score, last_opened, 0, 0 FROM entity_scores"
+            + " UNION ALL SELECT 2, key, group_id, last_updated, 0, 0, 0 FROM buckets"
+            + " UNION ALL SELECT 3, key, group_id, _id, day, mClicks, mImpressions FROM buffer_scores"
+            + ") r LEFT JOIN (SELECT key, 1 AS top FROM entity WHERE has_recs = 1 UNION SELECT key, 1 FROM buckets) t ON r.key = t.key"
+            + " ORDER BY tail, r.key, r.kind, r.a";
+    private static final int MAX_PENDING_ENTITIES = 32;
     private static DbHelper sDbHelper = null;
     private Context mContext;
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            DbHelper.this.flush();
+        }
+    };
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mFlushLock = new Object();
+    private boolean mFlushScheduled;
+    private long mEntitiesLoadTime = -1;
+    private int mImageEntityCount;
+    private long mImageLoadTime = -1;
+    private int mLoadedEntityCount;
+    private int mLoadedTopEntityCount;
     private final Object mLock;
     private boolean mMigrationEnabled;
     private Long mMostRecentTimeStamp;
+    private final LinkedHashMap<String, Entity> mPendingEntities = new LinkedHashMap();
+    private final HashSet<String> mRemovedKeys = new HashSet();
+    private final AtomicFile mSnapshotCache;
+    private boolean mSnapshotCacheValid = true;
+    private long mTopEntitiesLoadTime = -1;
+    private int mWriteGeneration;
 
-    private class GetEntitiesTask extends AsyncTask<Void, Void, Void> {
+    private class GetEntitiesTask extends AsyncTask<Void, HashMap<String, Entity>, Void> {
         private List<String> mBlacklistedPackages = new ArrayList();
         private HashMap<String, Entity> mEntities;
         private Listener mListener;
@@ -46,124 +83,78 @@ public class DbHelper extends SQLiteOpenHelper {
         }
 
         protected Void doInBackground(Void... params) {
-            HashMap<String, Entity> entities = new HashMap();
+            long start = SystemClock.elapsedRealtime();
+            long topLoadTime = -1;
+            int topEntityCount = 0;
+            EntityLoader loader = new EntityLoader();
+            for (String packageName : DbHelper.this.loadBlacklistedPackages()) {
+                loader.onBlacklistedPackage(packageName);
+            }
             SQLiteDatabase db = DbHelper.this.getWritableDatabase();
-            Cursor c = db.query("entity", null, null, null, null, null, null);
+            Cursor c = db.rawQuery(LOAD_ENTITIES_QUERY, null);
+            HashMap<String, Entity> top = null;
             try {
-                String key;
-                Entity entity;
-                int keyIndex = c.getColumnIndexOrThrow("key");
-                int bonusIndex = c.getColumnIndex("notif_bonus");
-                int bonusTimeIndex = c.getColumnIndex("bonus_timestamp");
-                int orderIndex = c.getColumnIndex("oob_order");
-                int postedRecIndex = c.getColumnIndex("has_recs");
                 while (c.moveToNext()) {
-                    key = c.getString(keyIndex);
-                    double bonus = bonusIndex == -1 ? 0.0d : c.getDouble(bonusIndex);
-                    long bonusTime = bonusTimeIndex == -1 ? 0 : c.getLong(bonusTimeIndex);
-                    long initialOrder = orderIndex == -1 ? 0 : c.getLong(orderIndex);
-                    boolean postedRec = postedRecIndex == -1 ? false : c.getLong(postedRecIndex) == 1;
-                    if (!TextUtils.isEmpty(key)) {
-                        Entity ent = new Entity(DbHelper.this.mContext, DbHelper.this, key, initialOrder, postedRec);
-                        if (bonusTime != 0 && bonus > 0.0d) {
-                            ent.setBonusValues(bonus, bonusTime);
-                        }
-                        entities.put(key, ent);
+                    String key = c.getString(2);
+                    if (TextUtils.isEmpty(key)) {
+                        continue;
                     }
-                }
-                c = db.query("entity_scores", null, null, null, null, null, null);
-                keyIndex = c.getColumnIndexOrThrow("key");
-                int componentIndex = c.getColumnIndex("component");
-                int entityScoreIndex = c.getColumnIndex("entity_score");
-                int lastOpenedIndex = c.getColumnIndex("last_opened");
-                while (c.moveToNext()) {
-                    long entityScore = 0L;
-                    key = c.getString(keyIndex);
-                    String component = c.getString(componentIndex);
-                    if (entityScoreIndex == -1) {
-                        entityScore = 0;
-                    } else {
-                        try {
-                            entityScore = c.getLong(entityScoreIndex);
-                        } catch (Throwable th) {
-                            c.close();
+                    if (top == null && c.getInt(0) != 0) {
+                        top = new HashMap(loader.getEntities());
+                        for (Entity loaded : top.values()) {
+                            loaded.clearDirty();
                         }
-                    }
-                    long lastOpened = lastOpenedIndex == -1 ? 0 : c.getLong(lastOpenedIndex);
-                    synchronized (DbHelper.this.mLock) {
-                        if (DbHelper.this.mMostRecentTimeStamp.longValue() < lastOpened) {
-                            DbHelper.this.mMostRecentTimeStamp = Long.valueOf(lastOpened);
+                        topEntityCount = top.size();
+                        topLoadTime = SystemClock.elapsedRealtime() - start;
+                        if (topEntityCount > 0) {
+                            this.mBlacklistedPackages = loader.getBlacklistedPackages();
+                            publishProgress(new HashMap[]{top});
                         }
                     }
-                    if (!TextUtils.isEmpty(key)) {
-                        entity = (Entity) entities.get(key);
-                        if (entity != null) {
-                            entity.setOrder(component, entityScore);
-                            entity.setLastOpenedTimeStamp(component, lastOpened);
-                        }
-                    }
-                }
-                c.close();
-                c = db.query("buckets", new String[]{"key", "group_id", "last_updated"}, null, null, null, null, "key, last_updated");
-                try {
-                    String group;
-                    keyIndex = c.getColumnIndexOrThrow("key");
-                    int groupIndex = c.getColumnIndex("group_id");
-                    int timeStampIndex = c.getColumnIndex("last_updated");
-                    while (c.moveToNext()) {
-                        key = c.getString(keyIndex);
-                        group = c.getString(groupIndex);
-                        long time = c.getLong(timeStampIndex);
-                        if (!TextUtils.isEmpty(key)) {
-                            entity = (Entity) entities.get(key);
-                            if (entity != null) {
-                                entity.addBucket(group, time);
-                            }
-                        }
-                    }
-                    c = db.query("buffer_scores", new String[]{"_id", "key", "group_id", "day", "mClicks", "mImpressions"}, null, null, null, null, "key, group_id, _id");
-                    try {
-                        keyIndex = c.getColumnIndexOrThrow("key");
-                        groupIndex = c.getColumnIndex("group_id");
-                        int dayIndex = c.getColumnIndex("day");
-                        int clicksIndex = c.getColumnIndex("mClicks");
-                        int impressionsIndex = c.getColumnIndex("mImpressions");
-                        while (c.moveToNext()) {
-                            int impressions;
-                            key = c.getString(keyIndex);
-                            group = c.getString(groupIndex);
-                            int day = c.getInt(dayIndex);
-                            int clicks = clicksIndex == -1 ? 0 : c.getInt(clicksIndex);
-                            if (impressionsIndex == -1) {
-                                impressions = 0;
-                            } else {
-                                impressions = c.getInt(impressionsIndex);
-                            }
-                            if (!(TextUtils.isEmpty(key) || day == -1)) {
-                                entity = (Entity) entities.get(key);
-                                if (entity != null) {
-                                    ActiveDayBuffer activeDayBuffer = entity.getSignalsBuffer(group);
-                                    if (activeDayBuffer != null) {
-                                        activeDayBuffer.set(DateUtil.getDate(day), new Signals(clicks, impressions));
-                                    }
-                                }
-                            }
-                        }
-                        if (DbHelper.DEBUG) {
-                            Log.v(DbHelper.TAG, "Done retrieving entities");
-                        }
-                        this.mEntities = entities;
-                        this.mBlacklistedPackages = DbHelper.this.loadBlacklistedPackages();
-                        return null;
-                    } finally {
-                        c.close();
+                    switch (c.getInt(1)) {
+                        case 0:
+                            loader.onEntity(key, c.getDouble(4), c.getLong(5), c.getLong(6), c.getLong(7) == 1);
+                            break;
+                        case 1:
+                            loader.onComponent(key, c.getString(3), c.getLong(4), c.getLong(5));
+                            break;
+                        case 2:
+                            loader.onBucket(key, c.getString(3), c.getLong(4));
+                            break;
+                        case 3:
+                            loader.onSignals(c.getInt(4), key, c.getString(3), c.getInt(5), c.getInt(6), c.getInt(7));
+                            break;
+                        default:
+                            break;
                     }
-                } finally {
-                    c.close();
                 }
             } finally {
                 c.close();
             }
+            // published top entities are live by now, actions may have dirtied them already
+            HashMap<String, Entity> entities = loader.getEntities();
+            for (Map.Entry<String, Entity> entry : entities.entrySet()) {
+                if (top == null || top.get(entry.getKey()) != entry.getValue()) {
+                    ((Entity) entry.getValue()).clearDirty();
+                }
+            }
+            long loadTime = SystemClock.elapsedRealtime() - start;
+            synchronized (DbHelper.this.mLock) {
+                DbHelper.this.mLoadedEntityCount = entities.size();
+                DbHelper.this.mLoadedTopEntityCount = topLoadTime == -1 ? entities.size() : topEntityCount;
+                DbHelper.this.mTopEntitiesLoadTime = topLoadTime == -1 ? loadTime : topLoadTime;
+                DbHelper.this.mEntitiesLoadTime = loadTime;
+            }
+            if (DbHelper.DEBUG) {
+                Log.v(DbHelper.TAG, "Done retrieving " + entities.size() + " entities in " + loadTime + "ms");
+            }
+            this.mEntities = entities;
+            this.mBlacklistedPackages = loader.getBlacklistedPackages();
+            return null;
+        }
+
+        protected void onProgressUpdate(HashMap<String, Entity>... topEntities) {
+            this.mListener.onTopEntitiesLoaded(topEntities[0], this.mBlacklistedPackages);
         }
 
         public void onPostExecute(Void result) {
@@ -173,6 +164,8 @@ public class DbHelper extends SQLiteOpenHelper {
 
     public interface Listener {
         void onEntitiesLoaded(HashMap<String, Entity> hashMap, List<String> list);
+
+        void onTopEntitiesLoaded(HashMap<String, Entity> hashMap, List<String> list);
     }
 
     private class RemoveEntityTask extends AsyncTask<Void, Void, Void> {
@@ -188,6 +181,7 @@ public class DbHelper extends SQLiteOpenHelper {
         }
 
         protected Void doInBackground(Void... params) {
+            DbHelper.this.invalidateSnapshotCache();
             String selection = "key=?";
             String[] selectionArgs = new String[]{this.mKey};
             SQLiteDatabase db = DbHelper.this.getWritableDatabase();
@@ -230,6 +224,7 @@ public class DbHelper extends SQLiteOpenHelper {
         }
 
         protected Void doInBackground(Void... params) {
+            DbHelper.this.invalidateSnapshotCache();
             String[] selectionArgs = new String[]{this.mKey, this.mGroup};
             SQLiteDatabase db = DbHelper.this.getWritableDatabase();
             db.delete("buckets", "key=? AND group_id=? ", selectionArgs);
@@ -242,116 +237,222 @@ public class DbHelper extends SQLiteOpenHelper {
         }
     }
 
-    private class SaveEntityTask extends AsyncTask<Void, Void, Void> {
-        private final HashMap<String, List<ContentValues>> mActiveDayBuffers;
-        private final HashMap<String, ContentValues> mComponents;
-        private final ContentValues mEntityValues = new ContentValues();
-        private final HashMap<String, ContentValues> mGroups;
-        private final String mKey;
+    private class EntityLoader implements DbStateReader.Visitor {
+        private final ArrayList<String> mBlacklistedPackages = new ArrayList();
+        private Entity mCurrent;
+        private final HashMap<String, Entity> mEntities = new HashMap();
 
-        public SaveEntityTask(Entity entity) {
-            this.mKey = entity.getKey();
-            this.mEntityValues.put("key", this.mKey);
-            this.mEntityValues.put("notif_bonus", Double.valueOf(entity.getBonus()));
-            this.mEntityValues.put("bonus_timestamp", Long.valueOf(entity.getBonusTimeStamp()));
-            this.mEntityValues.put("has_recs", entity.hasPostedRecommendations() ? "1" : "0");
-            this.mComponents = new HashMap();
-            for (String component : entity.getEntityComponents()) {
-                ContentValues cv = new ContentValues();
-                cv.put("key", this.mKey);
-                cv.put("component", component);
-                cv.put("entity_score", Long.valueOf(entity.getOrder(component)));
-                cv.put("last_opened", Long.valueOf(entity.getLastOpenedTimeStamp(component)));
-                this.mComponents.put(component, cv);
-            }
-            this.mGroups = new HashMap();
-            this.mActiveDayBuffers = new HashMap();
-            Iterator it = entity.getGroupIds().iterator();
-            while (it.hasNext()) {
-                String groupId = (String) it.next();
-                ContentValues cv = new ContentValues();
-                cv.put("key", this.mKey);
-                cv.put("group_id", groupId);
-                cv.put("last_updated", Long.valueOf(entity.getGroupTimeStamp(groupId)));
-                this.mGroups.put(groupId, cv);
-                ActiveDayBuffer buffer = entity.getSignalsBuffer(groupId);
-                if (buffer != null) {
-                    ArrayList<ContentValues> values = new ArrayList();
-                    int size = buffer.size();
-                    for (int i = 0; i < size; i++) {
-                        Signals value = buffer.getAt(i);
-                        int day = buffer.getDayAt(i);
-                        if (!(value == null || day == -1)) {
-                            cv = new ContentValues();
-                            cv.put("_id", Integer.valueOf(i));
-                            cv.put("key", this.mKey);
-                            cv.put("group_id", groupId);
-                            cv.put("day", Integer.valueOf(day));
-                            cv.put("mClicks", Integer.valueOf(value.mClicks));
-                            cv.put("mImpressions", Integer.valueOf(value.mImpressions));
-                            values.add(cv);
-                        }
-                    }
-                    this.mActiveDayBuffers.put(groupId, values);
-                }
-            }
+        HashMap<String, Entity> getEntities() {
+            return this.mEntities;
         }
 
-        protected Void doInBackground(Void... param) {
-            SQLiteDatabase db = DbHelper.this.getWritableDatabase();
-            if (DbHelper.DEBUG) {
-                Log.d(DbHelper.TAG, "SaveEntityTask#doInBackground: updating entity\nmEntityValues=" + this.mEntityValues);
+        List<String> getBlacklistedPackages() {
+            return this.mBlacklistedPackages;
+        }
+
+        private Entity lookup(String key) {
+            if (this.mCurrent == null || !this.mCurrent.getKey().equals(key)) {
+                this.mCurrent = (Entity) this.mEntities.get(key);
             }
-            if (db.update("entity", this.mEntityValues, "key=? ", new String[]{this.mKey}) == 0) {
-                if (DbHelper.DEBUG) {
-                    Log.d(DbHelper.TAG, "SaveEntityTask#doInBackground: update failed -> inserting into entity\nmEntityValues=" + this.mEntityValues);
-                }
-                db.insert("entity", null, this.mEntityValues);
-            }
-            for (Entry<String, ContentValues> pair : this.mComponents.entrySet()) {
-                int count;
-                String component = (String) pair.getKey();
-                ContentValues cv = (ContentValues) pair.getValue();
-                long timeStamp = cv.getAsLong("last_opened").longValue();
-                synchronized (DbHelper.this.mLock) {
-                    if (DbHelper.this.mMostRecentTimeStamp.longValue() < timeStamp) {
-                        DbHelper.this.mMostRecentTimeStamp = Long.valueOf(timeStamp);
-                    }
+            return this.mCurrent;
+        }
+
+        public void onEntity(String key, double bonus, long bonusTime, long oobOrder, boolean hasRecommendations) {
+            if (!TextUtils.isEmpty(key)) {
+                Entity entity = new Entity(DbHelper.this.mContext, DbHelper.this, key, oobOrder, hasRecommendations);
+                if (bonusTime != 0 && bonus > 0.0d) {
+                    entity.setBonusValues(bonus, bonusTime);
                 }
-                db = DbHelper.this.getWritableDatabase();
-                if (component == null) {
-                    count = db.update("entity_scores", cv, "key=? AND component IS NULL", new String[]{this.mKey});
-                } else {
-                    try {
-                        db.delete("entity_scores", "key=? AND component IS NULL", new String[]{this.mKey});
-                        count = db.update("entity_scores", cv, "key=? AND component=?", new String[]{this.mKey, component});
-                    } catch (Throwable th) {
-                        count = db.update("entity_scores", cv, "key=? AND component=?", new String[]{this.mKey, component});
-                    }
+                this.mEntities.put(key, entity);
+                this.mCurrent = entity;
+            }
+        }
+
+        public void onComponent(String key, String component, long order, long lastOpenedTimestamp) {
+            synchronized (DbHelper.this.mLock) {
+                if (DbHelper.this.mMostRecentTimeStamp.longValue() < lastOpenedTimestamp) {
+                    DbHelper.this.mMostRecentTimeStamp = Long.valueOf(lastOpenedTimestamp);
                 }
-                if (count == 0) {
-                    db.insert("entity_scores", null, cv);
+            }
+            Entity entity = lookup(key);
+            if (entity != null) {
+                entity.setOrder(component, order);
+                entity.setLastOpenedTimeStamp(component, lastOpenedTimestamp);
+            }
+        }
+
+        public void onBucket(String key, String groupId, long lastUpdatedTimestamp) {
+            Entity entity = lookup(key);
+            if (entity != null) {
+                entity.addBucket(groupId, lastUpdatedTimestamp);
+            }
+        }
+
+        public void onSignals(int id, String key, String groupId, int day, int clicks, int impressions) {
+            Entity entity = lookup(key);
+            if (entity != null && day != -1) {
+                ActiveDayBuffer activeDayBuffer = entity.getSignalsBuffer(groupId);
+                if (activeDayBuffer != null) {
+                    activeDayBuffer.setAt(id, day, clicks, impressions);
                 }
             }
-            for (Entry<String, ContentValues> pair2 : this.mGroups.entrySet()) {
-                ContentValues cv = (ContentValues) pair2.getValue();
-                if (db.update("buckets", cv, "key=? AND group_id=? ", new String[]{this.mKey, (String) pair2.getKey()}) == 0) {
-                    db.insert("buckets", null, cv);
+        }
+
+        public void onBlacklistedPackage(String key) {
+            if (!TextUtils.isEmpty(key)) {
+                this.mBlacklistedPackages.add(key);
+            }
+        }
+    }
+
+    private static class StateImporter implements DbStateReader.Visitor {
+        private final SQLiteStatement mInsertBlacklist;
+        private final SQLiteStatement mInsertBucket;
+        private final SQLiteStatement mInsertComponent;
+        private final SQLiteStatement mInsertEntity;
+        private final SQLiteStatement mInsertSignals;
+
+        StateImporter(SQLiteDatabase db) {
+            this.mInsertEntity = db.compileStatement("INSERT OR IGNORE INTO entity (key, notif_bonus, bonus_timestamp, oob_order, has_recs) VALUES (?, ?, ?, ?, ?)");
+            this.mInsertComponent = db.compileStatement("INSERT OR IGNORE INTO entity_scores (key, component, entity_score, last_opened) VALUES (?, ?, ?, ?)");
+            this.mInsertBucket = db.compileStatement("INSERT OR IGNORE INTO buckets (key, group_id, last_updated) VALUES (?, ?, ?)");
+            this.mInsertSignals = db.compileStatement("INSERT OR IGNORE INTO buffer_scores (_id, key, group_id, day, mClicks, mImpressions) VALUES (?, ?, ?, ?, ?, ?)");
+            this.mInsertBlacklist = db.compileStatement("INSERT OR IGNORE INTO rec_blacklist (key) VALUES (?)");
+        }
+
+        public void onEntity(String key, double bonus, long bonusTime, long oobOrder, boolean hasRecommendations) {
+            bindStringOrNull(this.mInsertEntity, 1, key);
+            this.mInsertEntity.bindDouble(2, bonus);
+            this.mInsertEntity.bindLong(3, bonusTime);
+            this.mInsertEntity.bindLong(4, oobOrder);
+            this.mInsertEntity.bindLong(5, hasRecommendations ? 1 : 0);
+            this.mInsertEntity.executeInsert();
+        }
+
+        public void onComponent(String key, String component, long order, long lastOpenedTimestamp) {
+            bindStringOrNull(this.mInsertComponent, 1, key);
+            bindStringOrNull(this.mInsertComponent, 2, component);
+            this.mInsertComponent.bindLong(3, order);
+            this.mInsertComponent.bindLong(4, lastOpenedTimestamp);
+            this.mInsertComponent.executeInsert();
+        }
+
+        public void onBucket(String key, String groupId, long lastUpdatedTimestamp) {
+            bindStringOrNull(this.mInsertBucket, 1, key);
+            bindStringOrNull(this.mInsertBucket, 2, groupId);
+            this.mInsertBucket.bindLong(3, lastUpdatedTimestamp);
+            this.mInsertBucket.executeInsert();
+        }
+
+        public void onSignals(int id, String key, String groupId, int day, int clicks, int impressions) {
+            this.mInsertSignals.bindLong(1, (long) id);
+            bindStringOrNull(this.mInsertSignals, 2, key);
+            bindStringOrNull(this.mInsertSignals, 3, groupId);
+            this.mInsertSignals.bindLong(4, (long) day);
+            this.mInsertSignals.bindLong(5, (long) clicks);
+            this.mInsertSignals.bindLong(6, (long) impressions);
+            this.mInsertSignals.executeInsert();
+        }
+
+        public void onBlacklistedPackage(String key) {
+            bindStringOrNull(this.mInsertBlacklist, 1, key);
+            this.mInsertBlacklist.executeInsert();
+        }
+
+        void close() {
+            this.mInsertEntity.close();
+            this.mInsertComponent.close();
+            this.mInsertBucket.close();
+            this.mInsertSignals.close();
+            this.mInsertBlacklist.close();
+        }
+    }
+
+    private static class EntitySnapshot {
+        final double mBonus;
+        final long mBonusTime;
+        final ArrayList<String> mComponents = new ArrayList();
+        final ArrayList<long[]> mComponentValues = new ArrayList();
+        final boolean mDirty;
+        final ArrayList<String> mGroups = new ArrayList();
+        final ArrayList<Long> mGroupTimeStamps = new ArrayList();
+        final ArrayList<String> mSignalGroups = new ArrayList();
+        final ArrayList<int[]> mSignalValues = new ArrayList();
+        final boolean mHasRecs;
+        final String mKey;
+
+        EntitySnapshot(Entity entity) {
+            synchronized (entity) {
+                this.mKey = entity.getKey();
+                this.mDirty = entity.isDirty();
+                this.mBonus = entity.getBonus();
+                this.mBonusTime = entity.getBonusTimeStamp();
+                this.mHasRecs = entity.hasPostedRecommendations();
+                if (this.mDirty) {
+                    for (String component : entity.getEntityComponents()) {
+                        this.mComponents.add(component);
+                        this.mComponentValues.add(new long[]{entity.getStoredOrder(component), entity.getLastOpenedTimeStamp(component)});
+                    }
                 }
-                String groupId = pair2.getKey();
-                List<ContentValues> signals = this.mActiveDayBuffers.get(groupId);
-                if (signals != null) {
-                    for (int i = 0; i < signals.size(); i++) {
-                        ContentValues signalValues = (ContentValues) signals.get(i);
-                        if (db.update("buffer_scores", signalValues, "key=? AND group_id=? AND _id=?", new String[]{this.mKey, groupId, "" + i}) == 0) {
-                            db.insert("buffer_scores", null, signalValues);
+                for (String groupId : entity.getDirtyGroupIds()) {
+                    Bucket bucket = entity.getBucket(groupId);
+                    if (bucket != null) {
+                        if (bucket.isTimestampDirty()) {
+                            this.mGroups.add(groupId);
+                            this.mGroupTimeStamps.add(Long.valueOf(bucket.getTimestamp()));
+                        }
+                        ActiveDayBuffer buffer = bucket.getBuffer();
+                        int size = buffer.size();
+                        for (int i = 0; i < size; i++) {
+                            int day = buffer.getDayAt(i);
+                            if (buffer.isSlotDirty(i) && day != -1) {
+                                this.mSignalGroups.add(groupId);
+                                this.mSignalValues.add(new int[]{i, day, buffer.getClicksAt(i), buffer.getImpressionsAt(i)});
+                            }
                         }
                     }
                 }
+                entity.clearDirty();
             }
-            if (DbHelper.DEBUG) {
-                Log.v(DbHelper.TAG, "Done saving " + this.mKey);
+        }
+    }
+
+    private class LoadSnapshotImageTask extends AsyncTask<Void, Void, EntityLoader> {
+        private final Listener mListener;
+
+        LoadSnapshotImageTask(Listener listener) {
+            this.mListener = listener;
+        }
+
+        protected EntityLoader doInBackground(Void... params) {
+            return DbHelper.this.readSnapshotImage();
+        }
+
+        public void onPostExecute(EntityLoader loader) {
+            if (loader != null) {
+                this.mListener.onTopEntitiesLoaded(loader.getEntities(), loader.getBlacklistedPackages());
             }
+        }
+    }
+
+    private class SaveSnapshotImageTask extends AsyncTask<Void, Void, Void> {
+        private final List<String> mBlacklistedPackages;
+        private final List<Entity> mEntities;
+
+        SaveSnapshotImageTask(List<Entity> entities, List<String> blacklistedPackages) {
+            this.mEntities = entities;
+            this.mBlacklistedPackages = blacklistedPackages;
+        }
+
+        protected Void doInBackground(Void... params) {
+            DbHelper.this.writeSnapshotImage(this.mEntities, this.mBlacklistedPackages);
+            return null;
+        }
+    }
+
+    private class FlushTask extends AsyncTask<Void, Void, Void> {
+        protected Void doInBackground(Void... params) {
+            DbHelper.this.flushPendingEntities();
             return null;
         }
     }
@@ -372,14 +473,16 @@ public class DbHelper extends SQLiteOpenHelper {
     }
 
     public DbHelper(Context context, String databaseName, boolean migrationEnabled) {
-        super(context, databaseName, null, 2);
+        super(context, databaseName, null, 3);
         this.mMostRecentTimeStamp = new Long(0);
         this.mLock = new Object();
         this.mContext = context;
         this.mMigrationEnabled = migrationEnabled;
+        this.mSnapshotCache = new AtomicFile(new File(context.getFilesDir(), databaseName + ".snapshot"));
     }
 
     public void onCreate(SQLiteDatabase db) {
+        invalidateSnapshotCache();
         createAllTables(db);
         DateUtil.setInitialRankingAppliedFlag(this.mContext, tryMigrateState(db));
     }
@@ -428,16 +531,27 @@ public class DbHelper extends SQLiteOpenHelper {
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        invalidateSnapshotCache();
         switch (oldVersion) {
             case 1:
                 setHasRecommendationsTrue(db, getPartnerOutOfBoxPackages());
                 setHasRecommendationsTrue(db, getOutOfBoxPackages());
+            case 2:
+                convertDaysToEpochDays(db);
                 return;
             default:
                 return;
         }
     }
 
+    private void convertDaysToEpochDays(SQLiteDatabase db) {
+        if (DEBUG) {
+            Log.d(TAG, "convertDaysToEpochDays");
+        }
+        // Older versions stored days as year * 1000 + day of year.
+        db.execSQL("UPDATE buffer_scores SET day = CAST(julianday(printf('%04d-01-01', day / 1000)) - 2440587.5 AS INTEGER) + (day % 1000) - 1 WHERE day >= 1000000");
+    }
+
     String[] getOutOfBoxPackages() {
         return this.mContext.getResources().getStringArray(R.array.out_of_box_order);
     }
@@ -483,17 +597,221 @@ public class DbHelper extends SQLiteOpenHelper {
     }
 
     public void saveEntity(Entity entity) {
-        if (!TextUtils.isEmpty(entity.getKey())) {
-            createSaveEntityTask(entity).execute(new Void[0]);
+        String key = entity.getKey();
+        if (!TextUtils.isEmpty(key)) {
+            boolean flushNow;
+            synchronized (this.mLock) {
+                this.mPendingEntities.put(key, entity);
+                flushNow = this.mPendingEntities.size() >= MAX_PENDING_ENTITIES;
+                if (!(flushNow || this.mFlushScheduled)) {
+                    this.mFlushScheduled = true;
+                    this.mHandler.postDelayed(this.mFlushRunnable, FLUSH_DELAY_MS);
+                }
+            }
+            if (flushNow) {
+                flush();
+            }
+        }
+    }
+
+    public void flush() {
+        synchronized (this.mLock) {
+            this.mHandler.removeCallbacks(this.mFlushRunnable);
+            this.mFlushScheduled = false;
+            if (this.mPendingEntities.isEmpty()) {
+                return;
+            }
         }
+        new FlushTask().execute(new Void[0]);
     }
 
-    AsyncTask<Void, Void, Void> createSaveEntityTask(Entity entity) {
-        return new SaveEntityTask(entity);
+    // Writes the pending entities on the calling thread before returning, for shutdown, where a
+    // queued FlushTask may never run.
+    public void flushNow() {
+        synchronized (this.mLock) {
+            this.mHandler.removeCallbacks(this.mFlushRunnable);
+            this.mFlushScheduled = false;
+        }
+        flushPendingEntities();
+    }
+
+    void flushPendingEntities() {
+        // one flush at a time, so an older snapshot of an entity never commits over a newer one
+        synchronized (this.mFlushLock) {
+            ArrayList<Entity> entities;
+            synchronized (this.mLock) {
+                entities = new ArrayList(this.mPendingEntities.values());
+                this.mPendingEntities.clear();
+                this.mRemovedKeys.clear();
+            }
+            if (!entities.isEmpty()) {
+                ArrayList<EntitySnapshot> snapshots = new ArrayList(entities.size());
+                for (Entity entity : entities) {
+                    snapshots.add(new EntitySnapshot(entity));
+                }
+                invalidateSnapshotCache();
+                try {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.beginTransaction();
+                    try {
+                        writeSnapshotsInTransaction(db, snapshots);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Cannot save " + snapshots.size() + " entities, retrying", e);
+                    restorePendingEntities(entities);
+                    return;
+                }
+                if (DEBUG) {
+                    Log.v(TAG, "Done saving " + snapshots.size() + " entities");
+                }
+            }
+        }
+    }
+
+    // The snapshots cleared the dirty state of what they held, so a failed write marks all of it
+    // dirty again and queues the entities for the next flush, unless they were removed meanwhile.
+    // Runs under mFlushLock, nothing drains mRemovedKeys before the entities are back.
+    private void restorePendingEntities(List<Entity> entities) {
+        for (Entity entity : entities) {
+            entity.markDirty();
+        }
+        synchronized (this.mLock) {
+            for (Entity entity : entities) {
+                String key = entity.getKey();
+                if (!(this.mRemovedKeys.contains(key) || this.mPendingEntities.containsKey(key))) {
+                    this.mPendingEntities.put(key, entity);
+                }
+            }
+            if (!this.mFlushScheduled) {
+                this.mFlushScheduled = true;
+                this.mHandler.postDelayed(this.mFlushRunnable, FLUSH_DELAY_MS);
+            }
+        }
+    }
+
+    private void writeSnapshotsInTransaction(SQLiteDatabase db, List<EntitySnapshot> snapshots) {
+        SQLiteStatement updateEntity = db.compileStatement("UPDATE entity SET notif_bonus=?, bonus_timestamp=?, has_recs=? WHERE key=?");
+        SQLiteStatement insertEntity = db.compileStatement("INSERT INTO entity(key, notif_bonus, bonus_timestamp, has_recs) VALUES(?, ?, ?, ?)");
+        SQLiteStatement updateNullComponent = db.compileStatement("UPDATE entity_scores SET entity_score=?, last_opened=? WHERE key=? AND component IS NULL");
+        SQLiteStatement deleteNullComponent = db.compileStatement("DELETE FROM entity_scores WHERE key=? AND component IS NULL");
+        SQLiteStatement updateComponent = db.compileStatement("UPDATE entity_scores SET entity_score=?, last_opened=? WHERE key=? AND component=?");
+        SQLiteStatement insertComponent = db.compileStatement("INSERT INTO entity_scores(key, component, entity_score, last_opened) VALUES(?, ?, ?, ?)");
+        SQLiteStatement updateBucket = db.compileStatement("UPDATE buckets SET last_updated=? WHERE key=? AND group_id=?");
+        SQLiteStatement insertBucket = db.compileStatement("INSERT INTO buckets(key, group_id, last_updated) VALUES(?, ?, ?)");
+        SQLiteStatement updateSignals = db.compileStatement("UPDATE buffer_scores SET day=?, mClicks=?, mImpressions=? WHERE key=? AND group_id=? AND _id=?");
+        SQLiteStatement insertSignals = db.compileStatement("INSERT INTO buffer_scores(_id, key, group_id, day, mClicks, mImpressions) VALUES(?, ?, ?, ?, ?, ?)");
+        try {
+            for (EntitySnapshot snapshot : snapshots) {
+                String key = snapshot.mKey;
+                if (snapshot.mDirty) {
+                    updateEntity.bindDouble(1, snapshot.mBonus);
+                    updateEntity.bindLong(2, snapshot.mBonusTime);
+                    updateEntity.bindLong(3, snapshot.mHasRecs ? 1 : 0);
+                    updateEntity.bindString(4, key);
+                    if (updateEntity.executeUpdateDelete() == 0) {
+                        insertEntity.bindString(1, key);
+                        insertEntity.bindDouble(2, snapshot.mBonus);
+                        insertEntity.bindLong(3, snapshot.mBonusTime);
+                        insertEntity.bindLong(4, snapshot.mHasRecs ? 1 : 0);
+                        insertEntity.executeInsert();
+                    }
+                }
+                for (int i = 0; i < snapshot.mComponents.size(); i++) {
+                    int count;
+                    String component = (String) snapshot.mComponents.get(i);
+                    long[] values = (long[]) snapshot.mComponentValues.get(i);
+                    long timeStamp = values[1];
+                    synchronized (this.mLock) {
+                        if (this.mMostRecentTimeStamp.longValue() < timeStamp) {
+                            this.mMostRecentTimeStamp = Long.valueOf(timeStamp);
+                        }
+                    }
+                    if (component == null) {
+                        updateNullComponent.bindLong(1, values[0]);
+                        updateNullComponent.bindLong(2, timeStamp);
+                        updateNullComponent.bindString(3, key);
+                        count = updateNullComponent.executeUpdateDelete();
+                    } else {
+                        deleteNullComponent.bindString(1, key);
+                        deleteNullComponent.executeUpdateDelete();
+                        updateComponent.bindLong(1, values[0]);
+                        updateComponent.bindLong(2, timeStamp);
+                        updateComponent.bindString(3, key);
+                        updateComponent.bindString(4, component);
+                        count = updateComponent.executeUpdateDelete();
+                    }
+                    if (count == 0) {
+                        insertComponent.bindString(1, key);
+                        bindStringOrNull(insertComponent, 2, component);
+                        insertComponent.bindLong(3, values[0]);
+                        insertComponent.bindLong(4, timeStamp);
+                        insertComponent.executeInsert();
+                    }
+                }
+                for (int i = 0; i < snapshot.mGroups.size(); i++) {
+                    String groupId = (String) snapshot.mGroups.get(i);
+                    long lastUpdated = ((Long) snapshot.mGroupTimeStamps.get(i)).longValue();
+                    updateBucket.bindLong(1, lastUpdated);
+                    updateBucket.bindString(2, key);
+                    updateBucket.bindString(3, groupId);
+                    if (updateBucket.executeUpdateDelete() == 0) {
+                        insertBucket.bindString(1, key);
+                        insertBucket.bindString(2, groupId);
+                        insertBucket.bindLong(3, lastUpdated);
+                        insertBucket.executeInsert();
+                    }
+                }
+                for (int i = 0; i < snapshot.mSignalValues.size(); i++) {
+                    String groupId = (String) snapshot.mSignalGroups.get(i);
+                    int[] value = (int[]) snapshot.mSignalValues.get(i);
+                    updateSignals.bindLong(1, (long) value[1]);
+                    updateSignals.bindLong(2, (long) value[2]);
+                    updateSignals.bindLong(3, (long) value[3]);
+                    updateSignals.bindString(4, key);
+                    updateSignals.bindString(5, groupId);
+                    updateSignals.bindLong(6, (long) value[0]);
+                    if (updateSignals.executeUpdateDelete() == 0) {
+                        insertSignals.bindLong(1, (long) value[0]);
+                        insertSignals.bindString(2, key);
+                        insertSignals.bindString(3, groupId);
+                        insertSignals.bindLong(4, (long) value[1]);
+                        insertSignals.bindLong(5, (long) value[2]);
+                        insertSignals.bindLong(6, (long) value[3]);
+                        insertSignals.executeInsert();
+                    }
+                }
+            }
+        } finally {
+            updateEntity.close();
+            insertEntity.close();
+            updateNullComponent.close();
+            deleteNullComponent.close();
+            updateComponent.close();
+            insertComponent.close();
+            updateBucket.close();
+            insertBucket.close();
+            updateSignals.close();
+            insertSignals.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 
     public void removeEntity(String key, boolean fullRemoval) {
         if (!TextUtils.isEmpty(key)) {
+            synchronized (this.mLock) {
+                this.mPendingEntities.remove(key);
+                this.mRemovedKeys.add(key);
+            }
             new RemoveEntityTask(key, fullRemoval).execute(new Void[0]);
         }
     }
@@ -508,6 +826,143 @@ public class DbHelper extends SQLiteOpenHelper {
         new GetEntitiesTask(listener).execute();
     }
 
+    // Serves the image written by saveSnapshotImage() at the last clean shutdown, mapped read-only,
+    // as the listener's top entities. The caller still needs getEntities() to reconcile with the
+    // database; any write since the image was taken has already deleted it. The image is decoded
+    // on the serial executor, ahead of a getEntities() issued after this call.
+    public void loadSnapshotImage(Listener listener) {
+        new LoadSnapshotImageTask(listener).execute(new Void[0]);
+    }
+
+    private EntityLoader readSnapshotImage() {
+        long start = SystemClock.elapsedRealtime();
+        File file = this.mSnapshotCache.getBaseFile();
+        if (!file.exists()) {
+            synchronized (this.mLock) {
+                this.mSnapshotCacheValid = false;
+            }
+            return null;
+        }
+        EntityLoader loader = new EntityLoader();
+        try {
+            DbStateReader.map(file).accept(loader);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding ranking snapshot", e);
+            invalidateSnapshotCache();
+            return null;
+        }
+        HashMap<String, Entity> entities = loader.getEntities();
+        for (Entity loaded : entities.values()) {
+            loaded.clearDirty();
+        }
+        long loadTime = SystemClock.elapsedRealtime() - start;
+        synchronized (this.mLock) {
+            this.mImageEntityCount = entities.size();
+            this.mImageLoadTime = loadTime;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Mapped " + entities.size() + " entities from ranking snapshot in " + loadTime + "ms");
+        }
+        return loader;
+    }
+
+    public void saveSnapshotImage(List<Entity> entities, List<String> blacklistedPackages) {
+        new SaveSnapshotImageTask(entities, blacklistedPackages).execute(new Void[0]);
+    }
+
+    private void writeSnapshotImage(List<Entity> entities, List<String> blacklistedPackages) {
+        int generation;
+        synchronized (this.mLock) {
+            // Unsaved changes would make the image newer than the database it stands in for.
+            if (!this.mPendingEntities.isEmpty()) {
+                return;
+            }
+            generation = this.mWriteGeneration;
+        }
+        FileOutputStream out = null;
+        try {
+            out = this.mSnapshotCache.startWrite();
+            DbStateWriter writer = new DbStateWriter(out);
+            for (String packageName : blacklistedPackages) {
+                writer.writeBlacklistedPackage(packageName);
+            }
+            for (Entity entity : entities) {
+                writeEntityImage(writer, entity);
+            }
+            writer.finish();
+            this.mSnapshotCache.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write ranking snapshot", e);
+            if (out != null) {
+                this.mSnapshotCache.failWrite(out);
+            }
+            return;
+        }
+        synchronized (this.mLock) {
+            if (generation == this.mWriteGeneration) {
+                this.mSnapshotCacheValid = true;
+                if (DEBUG) {
+                    Log.d(TAG, "Saved " + entities.size() + " entities to ranking snapshot");
+                }
+                return;
+            }
+        }
+        this.mSnapshotCache.delete();
+    }
+
+    // Same records the database load produces, so loadSnapshotImage() rebuilds identical entities.
+    private static void writeEntityImage(DbStateWriter writer, Entity entity) throws IOException {
+        synchronized (entity) {
+            String key = entity.getKey();
+            writer.writeEntity(key, entity.getBonus(), entity.getBonusTimeStamp(), entity.getOutOfBoxOrder(), entity.hasPostedRecommendations());
+            for (String component : new ArrayList<String>(entity.getEntityComponents())) {
+                writer.writeComponent(key, component, entity.getStoredOrder(component), entity.getLastOpenedTimeStamp(component));
+            }
+            for (String groupId : entity.getGroupIds()) {
+                Bucket bucket = entity.getBucket(groupId);
+                if (bucket != null) {
+                    writer.writeBucket(key, groupId, bucket.getTimestamp());
+                    ActiveDayBuffer buffer = bucket.getBuffer();
+                    int size = buffer.size();
+                    for (int i = 0; i < size; i++) {
+                        int day = buffer.getDayAt(i);
+                        if (day != -1) {
+                            writer.writeSignals(i, key, groupId, day, buffer.getClicksAt(i), buffer.getImpressionsAt(i));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void invalidateSnapshotCache() {
+        synchronized (this.mLock) {
+            this.mWriteGeneration++;
+            if (!this.mSnapshotCacheValid) {
+                return;
+            }
+            this.mSnapshotCacheValid = false;
+        }
+        this.mSnapshotCache.delete();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "DbHelper");
+        prefix = prefix + "  ";
+        synchronized (this.mLock) {
+            if (this.mEntitiesLoadTime == -1) {
+                writer.println(prefix + "entities not loaded yet");
+            } else {
+                writer.println(prefix + "top entities: " + this.mLoadedTopEntityCount + " loaded in " + this.mTopEntitiesLoadTime + "ms");
+                writer.println(prefix + "all entities: " + this.mLoadedEntityCount + " loaded in " + this.mEntitiesLoadTime + "ms");
+            }
+            if (this.mImageLoadTime != -1) {
+                writer.println(prefix + "snapshot image: " + this.mImageEntityCount + " entities mapped in " + this.mImageLoadTime + "ms");
+            }
+            writer.println(prefix + "pending saves: " + this.mPendingEntities.size());
+        }
+    }
+
     public List<String> loadRecommendationsPackages() {
         if (DEBUG) {
             Log.d(TAG, "loadRecommendationsPackages");
@@ -538,6 +993,7 @@ public class DbHelper extends SQLiteOpenHelper {
     }
 
     public void saveBlacklistedPackages(String[] blacklistedPackages) {
+        invalidateSnapshotCache();
         SQLiteDatabase db = getWritableDatabase();
         ContentValues cv = new ContentValues();
         db.beginTransaction();
@@ -578,112 +1034,83 @@ public class DbHelper extends SQLiteOpenHelper {
         if (DEBUG) {
             Log.d(TAG, "loadFromSavedStateInTransaction");
         }
-        ObjectInputStream in = new ObjectInputStream(stream);
-        int version = in.readInt();
-        if (version != 1) {
-            throw new IOException("Unknown saved state format " + version);
+        invalidateSnapshotCache();
+        BufferedInputStream in = new BufferedInputStream(stream);
+        byte[] header = new byte[4];
+        in.mark(header.length);
+        int read = 0;
+        while (read < header.length) {
+            int count = in.read(header, read, header.length - read);
+            if (count == -1) {
+                break;
+            }
+            read += count;
         }
-        ContentValues values = new ContentValues();
-        while (true) {
-            values.clear();
-            try {
-                char recordType = in.readChar();
-                switch (recordType) {
-                    case 'b':
-                        values.put("key", in.readUTF());
-                        values.put("group_id", in.readUTF());
-                        values.put("last_updated", in.readLong());
-                        db.insert("buckets", null, values);
-                        break;
-                    case 'c':
-                        values.put("key", in.readUTF());
-                        String component = in.readUTF();
-                        String str = "component";
-                        if (TextUtils.isEmpty(component)) {
-                            component = null;
-                        }
-                        values.put(str, component);
-                        values.put("entity_score", in.readInt());
-                        values.put("last_opened", in.readLong());
-                        db.insert("entity_scores", null, values);
-                        break;
-                    case 'e':
-                        values.put("key", in.readUTF());
-                        values.put("notif_bonus", in.readFloat());
-                        values.put("bonus_timestamp", in.readLong());
-                        values.put("has_recs", in.readBoolean() ? 1 : 0);
-                        if (DEBUG) {
-                            Log.d(TAG, "loadFromSavedStateInTransaction: inserting into entity\nvalues=" + values);
-                        }
-                        db.insert("entity", null, values);
-                        break;
-                    case 'k':
-                        values.put("key", in.readUTF());
-                        db.insert("rec_blacklist", null, values);
-                        break;
-                    case 's':
-                        values.put("_id", Integer.valueOf(in.readInt()));
-                        values.put("key", in.readUTF());
-                        values.put("group_id", in.readUTF());
-                        values.put("day", Integer.valueOf(in.readInt()));
-                        values.put("mClicks", Integer.valueOf(in.readInt()));
-                        values.put("mImpressions", Integer.valueOf(in.readInt()));
-                        db.insert("buffer_scores", null, values);
-                        break;
-                    default:
-                        throw new IOException("Unrecognized record type: " + recordType);
-                }
-            } catch (EOFException e) {
-                return;
+        in.reset();
+        StateImporter importer = new StateImporter(db);
+        try {
+            if (DbStateReader.isSnapshot(header)) {
+                DbStateReader.open(in).accept(importer);
+            } else {
+                DbStateReader.readLegacy(in, importer);
             }
+        } finally {
+            importer.close();
         }
+        convertDaysToEpochDays(db);
     }
 
     public File getRecommendationMigrationFile() throws IOException {
         File file = new File(this.mContext.getFilesDir(), "migration_recs");
         DbStateWriter writer = new DbStateWriter(new FileOutputStream(file));
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query("entity", new String[]{"key", "notif_bonus", "bonus_timestamp", "has_recs"}, null, null, null, null, null);
-        while (cursor.moveToNext()) {
-            try {
-                writer.writeEntity(cursor.getString(0), cursor.getFloat(1), cursor.getLong(2), cursor.getInt(3) != 0);
-            } finally {
-                cursor.close();
+        try {
+            writeState(getReadableDatabase(), writer);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private void writeState(SQLiteDatabase db, DbStateWriter writer) throws IOException {
+        Cursor cursor = db.query("entity", new String[]{"key", "notif_bonus", "bonus_timestamp", "oob_order", "has_recs"}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                writer.writeEntity(cursor.getString(0), cursor.getDouble(1), cursor.getLong(2), cursor.getLong(3), cursor.getInt(4) != 0);
             }
+        } finally {
+            cursor.close();
         }
         cursor = db.query("entity_scores", new String[]{"key", "component", "entity_score", "last_opened"}, null, null, null, null, null);
-        while (cursor.moveToNext()) {
-            try {
-                writer.writeComponent(cursor.getString(0), cursor.getString(1), cursor.getInt(2), cursor.getLong(3));
-            } finally {
-                cursor.close();
+        try {
+            while (cursor.moveToNext()) {
+                writer.writeComponent(cursor.getString(0), cursor.getString(1), cursor.getLong(2), cursor.getLong(3));
             }
+        } finally {
+            cursor.close();
         }
         cursor = db.query("buckets", new String[]{"key", "group_id", "last_updated"}, null, null, null, null, null);
-        while (cursor.moveToNext()) {
-            try {
+        try {
+            while (cursor.moveToNext()) {
                 writer.writeBucket(cursor.getString(0), cursor.getString(1), cursor.getLong(2));
-            } finally {
-                cursor.close();
             }
+        } finally {
+            cursor.close();
         }
         cursor = db.query("buffer_scores", new String[]{"_id", "key", "group_id", "day", "mClicks", "mImpressions"}, null, null, null, null, null);
-        while (cursor.moveToNext()) {
-            try {
+        try {
+            while (cursor.moveToNext()) {
                 writer.writeSignals(cursor.getInt(0), cursor.getString(1), cursor.getString(2), cursor.getInt(3), cursor.getInt(4), cursor.getInt(5));
-            } finally {
-                cursor.close();
             }
+        } finally {
+            cursor.close();
         }
         cursor = db.query("rec_blacklist", new String[]{"key"}, null, null, null, null, null);
-        while (cursor.moveToNext()) {
-            try {
+        try {
+            while (cursor.moveToNext()) {
                 writer.writeBlacklistedPackage(cursor.getString(0));
-            } finally {
-                cursor.close();
             }
+        } finally {
+            cursor.close();
         }
-        writer.close();
-        return file;
     }
 }
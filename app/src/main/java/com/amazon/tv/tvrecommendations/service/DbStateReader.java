@@ -0,0 +1,233 @@
+package com.amazon.tv.tvrecommendations.service;
+
+import android.text.TextUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+// Ranking state snapshot: a header (magic, version) followed by records of
+// [type:byte][length:int][payload]. Strings are interned into a table of 't' records and referenced
+// by index, -1 standing for null. The closing 'z' record holds the CRC32 of everything before it.
+public class DbStateReader {
+    static final int MAGIC = 0x4c425253;
+    static final byte RECORD_BLACKLIST = (byte) 107;
+    static final byte RECORD_BUCKET = (byte) 98;
+    static final byte RECORD_COMPONENT = (byte) 99;
+    static final byte RECORD_END = (byte) 122;
+    static final byte RECORD_ENTITY = (byte) 101;
+    static final byte RECORD_SIGNALS = (byte) 115;
+    static final byte RECORD_STRING = (byte) 116;
+    static final int VERSION = 2;
+    private final ByteBuffer mBuffer;
+    private final int mEnd;
+
+    public interface Visitor {
+        void onBlacklistedPackage(String key);
+
+        void onBucket(String key, String groupId, long lastUpdatedTimestamp);
+
+        void onComponent(String key, String component, long order, long lastOpenedTimestamp);
+
+        void onEntity(String key, double bonus, long bonusTime, long oobOrder, boolean hasRecommendations);
+
+        void onSignals(int id, String key, String groupId, int day, int clicks, int impressions);
+    }
+
+    public DbStateReader(ByteBuffer buffer) throws IOException {
+        this.mBuffer = buffer;
+        if (buffer.remaining() < 17 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a ranking state snapshot");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unknown saved state format " + version);
+        }
+        this.mEnd = buffer.limit() - 9;
+        if (buffer.get(this.mEnd) != RECORD_END || buffer.getInt(this.mEnd + 1) != 4) {
+            throw new IOException("Truncated ranking state snapshot");
+        }
+        if (buffer.getInt(this.mEnd + 5) != checksum(buffer, this.mEnd)) {
+            throw new IOException("Ranking state snapshot checksum mismatch");
+        }
+    }
+
+    public static DbStateReader open(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Ranking state snapshot too large: " + size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            return new DbStateReader(buffer);
+        } finally {
+            in.close();
+        }
+    }
+
+    // The mapping outlives the channel, and stays readable even if the file is deleted meanwhile.
+    public static DbStateReader map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return new DbStateReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    public static DbStateReader open(InputStream stream) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(stream);
+        ByteBuffer buffer = ByteBuffer.allocate(16384);
+        while (channel.read(buffer) != -1) {
+            if (!buffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+        buffer.flip();
+        return new DbStateReader(buffer);
+    }
+
+    static boolean isSnapshot(byte[] header) {
+        return header.length >= 4 && ByteBuffer.wrap(header).getInt(0) == MAGIC;
+    }
+
+    private static int checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset(), length);
+        } else {
+            byte[] chunk = new byte[8192];
+            ByteBuffer in = buffer.duplicate();
+            in.clear();
+            int position = 0;
+            while (position < length) {
+                int count = Math.min(chunk.length, length - position);
+                in.get(chunk, 0, count);
+                crc.update(chunk, 0, count);
+                position += count;
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    public void accept(Visitor visitor) throws IOException {
+        ByteBuffer in = this.mBuffer.duplicate();
+        in.position(8);
+        in.limit(this.mEnd);
+        ArrayList<String> strings = new ArrayList();
+        byte[] scratch = new byte[64];
+        while (in.hasRemaining()) {
+            if (in.remaining() < 5) {
+                throw new IOException("Truncated record");
+            }
+            byte type = in.get();
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IOException("Bad record length " + length);
+            }
+            int next = in.position() + length;
+            switch (type) {
+                case RECORD_STRING:
+                    if (scratch.length < length) {
+                        scratch = new byte[length];
+                    }
+                    in.get(scratch, 0, length);
+                    strings.add(new String(scratch, 0, length, StandardCharsets.UTF_8));
+                    break;
+                case RECORD_ENTITY:
+                    visitor.onEntity(lookup(strings, in.getInt()), in.getDouble(), in.getLong(), in.getLong(), in.get() != 0);
+                    break;
+                case RECORD_COMPONENT:
+                    visitor.onComponent(lookup(strings, in.getInt()), lookup(strings, in.getInt()), in.getLong(), in.getLong());
+                    break;
+                case RECORD_BUCKET:
+                    visitor.onBucket(lookup(strings, in.getInt()), lookup(strings, in.getInt()), in.getLong());
+                    break;
+                case RECORD_SIGNALS:
+                    String key = lookup(strings, in.getInt());
+                    String groupId = lookup(strings, in.getInt());
+                    visitor.onSignals(in.getInt(), key, groupId, in.getInt(), in.getInt(), in.getInt());
+                    break;
+                case RECORD_BLACKLIST:
+                    visitor.onBlacklistedPackage(lookup(strings, in.getInt()));
+                    break;
+                default:
+                    break;
+            }
+            in.position(next);
+        }
+    }
+
+    private static String lookup(ArrayList<String> strings, int index) throws IOException {
+        if (index == -1) {
+            return null;
+        }
+        if (index < 0 || index >= strings.size()) {
+            throw new IOException("Bad string reference " + index);
+        }
+        return (String) strings.get(index);
+    }
+
+    // Version 1 was an ObjectOutputStream of writeChar/writeUTF records, still produced by older
+    // launchers that we migrate from.
+    public static void readLegacy(InputStream stream, Visitor visitor) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(stream);
+        int version = in.readInt();
+        if (version != 1) {
+            throw new IOException("Unknown saved state format " + version);
+        }
+        while (true) {
+            try {
+                char recordType = in.readChar();
+                switch (recordType) {
+                    case 'b':
+                        visitor.onBucket(in.readUTF(), in.readUTF(), in.readLong());
+                        break;
+                    case 'c':
+                        String key = in.readUTF();
+                        String component = in.readUTF();
+                        if (TextUtils.isEmpty(component)) {
+                            component = null;
+                        }
+                        visitor.onComponent(key, component, (long) in.readInt(), in.readLong());
+                        break;
+                    case 'e':
+                        visitor.onEntity(in.readUTF(), (double) in.readFloat(), in.readLong(), 0, in.readBoolean());
+                        break;
+                    case 'k':
+                        visitor.onBlacklistedPackage(in.readUTF());
+                        break;
+                    case 's':
+                        visitor.onSignals(in.readInt(), in.readUTF(), in.readUTF(), in.readInt(), in.readInt(), in.readInt());
+                        break;
+                    default:
+                        throw new IOException("Unrecognized record type: " + recordType);
+                }
+            } catch (EOFException e) {
+                return;
+            }
+        }
+    }
+}
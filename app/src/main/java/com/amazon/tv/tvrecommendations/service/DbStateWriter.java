@@ -1,68 +1,111 @@
 package com.amazon.tv.tvrecommendations.service;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 public class DbStateWriter {
-    private final ObjectOutputStream mOut;
+    private final CRC32 mChecksum = new CRC32();
+    private boolean mFinished;
+    private final DataOutputStream mOut;
+    private final DataOutputStream mRecord;
+    private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream(64);
+    private final HashMap<String, Integer> mStrings = new HashMap();
 
     public DbStateWriter(OutputStream stream) throws IOException {
-        this.mOut = new ObjectOutputStream(stream);
-        this.mOut.writeInt(1);
+        this.mOut = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(stream), this.mChecksum));
+        this.mRecord = new DataOutputStream(this.mRecordBytes);
+        this.mOut.writeInt(DbStateReader.MAGIC);
+        this.mOut.writeInt(DbStateReader.VERSION);
     }
 
-    public void writeEntity(String key, float bonus, long bonusTime, boolean hasRecommendations) throws IOException {
-        this.mOut.writeChar(101);
-        this.mOut.writeUTF(key);
-        this.mOut.writeFloat(bonus);
-        this.mOut.writeLong(bonusTime);
-        this.mOut.writeBoolean(hasRecommendations);
+    public void writeEntity(String key, double bonus, long bonusTime, boolean hasRecommendations) throws IOException {
+        writeEntity(key, bonus, bonusTime, 0, hasRecommendations);
     }
 
-    public void writeComponent(String key, String component, int order, long lastOpenedTimestamp) throws IOException {
-        this.mOut.writeChar(99);
-        this.mOut.writeUTF(key);
-        ObjectOutputStream objectOutputStream = this.mOut;
-        if (component == null) {
-            component = "";
-        }
-        objectOutputStream.writeUTF(component);
-        this.mOut.writeInt(order);
-        this.mOut.writeLong(lastOpenedTimestamp);
+    public void writeEntity(String key, double bonus, long bonusTime, long oobOrder, boolean hasRecommendations) throws IOException {
+        this.mRecord.writeInt(intern(key));
+        this.mRecord.writeDouble(bonus);
+        this.mRecord.writeLong(bonusTime);
+        this.mRecord.writeLong(oobOrder);
+        this.mRecord.writeBoolean(hasRecommendations);
+        writeRecord(DbStateReader.RECORD_ENTITY);
+    }
+
+    public void writeComponent(String key, String component, long order, long lastOpenedTimestamp) throws IOException {
+        this.mRecord.writeInt(intern(key));
+        this.mRecord.writeInt(intern(component));
+        this.mRecord.writeLong(order);
+        this.mRecord.writeLong(lastOpenedTimestamp);
+        writeRecord(DbStateReader.RECORD_COMPONENT);
     }
 
     public void writeBucket(String key, String groupId, long lastUpdatedTimestamp) throws IOException {
-        this.mOut.writeChar(98);
-        this.mOut.writeUTF(key);
-        ObjectOutputStream objectOutputStream = this.mOut;
-        if (groupId == null) {
-            groupId = "";
-        }
-        objectOutputStream.writeUTF(groupId);
-        this.mOut.writeLong(lastUpdatedTimestamp);
+        this.mRecord.writeInt(intern(key));
+        this.mRecord.writeInt(intern(groupId));
+        this.mRecord.writeLong(lastUpdatedTimestamp);
+        writeRecord(DbStateReader.RECORD_BUCKET);
     }
 
     public void writeSignals(int id, String key, String groupId, int day, int clicks, int impressions) throws IOException {
-        this.mOut.writeChar(115);
-        this.mOut.writeInt(id);
-        this.mOut.writeUTF(key);
-        ObjectOutputStream objectOutputStream = this.mOut;
-        if (groupId == null) {
-            groupId = "";
-        }
-        objectOutputStream.writeUTF(groupId);
-        this.mOut.writeInt(day);
-        this.mOut.writeInt(clicks);
-        this.mOut.writeInt(impressions);
+        this.mRecord.writeInt(intern(key));
+        this.mRecord.writeInt(intern(groupId));
+        this.mRecord.writeInt(id);
+        this.mRecord.writeInt(day);
+        this.mRecord.writeInt(clicks);
+        this.mRecord.writeInt(impressions);
+        writeRecord(DbStateReader.RECORD_SIGNALS);
     }
 
     public void writeBlacklistedPackage(String key) throws IOException {
-        this.mOut.writeChar(107);
-        this.mOut.writeUTF(key);
+        this.mRecord.writeInt(intern(key));
+        writeRecord(DbStateReader.RECORD_BLACKLIST);
+    }
+
+    private int intern(String value) throws IOException {
+        if (value == null) {
+            return -1;
+        }
+        Integer index = (Integer) this.mStrings.get(value);
+        if (index != null) {
+            return index.intValue();
+        }
+        int next = this.mStrings.size();
+        this.mStrings.put(value, Integer.valueOf(next));
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        this.mOut.writeByte(DbStateReader.RECORD_STRING);
+        this.mOut.writeInt(bytes.length);
+        this.mOut.write(bytes);
+        return next;
+    }
+
+    private void writeRecord(int type) throws IOException {
+        this.mOut.writeByte(type);
+        this.mOut.writeInt(this.mRecordBytes.size());
+        this.mRecordBytes.writeTo(this.mOut);
+        this.mRecordBytes.reset();
+    }
+
+    public void finish() throws IOException {
+        if (!this.mFinished) {
+            this.mFinished = true;
+            this.mOut.flush();
+            int checksum = (int) this.mChecksum.getValue();
+            this.mOut.writeByte(DbStateReader.RECORD_END);
+            this.mOut.writeInt(4);
+            this.mOut.writeInt(checksum);
+            this.mOut.flush();
+        }
     }
 
     public void close() throws IOException {
+        finish();
         this.mOut.close();
     }
 }
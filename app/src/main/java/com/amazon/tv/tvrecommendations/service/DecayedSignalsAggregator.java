@@ -0,0 +1,53 @@
+package com.amazon.tv.tvrecommendations.service;
+
+import java.util.Date;
+
+// Click-through rate with every day weighted by 2^(-age / half-life), age counted from the most
+// recent day added. Clicks and impressions decay alike, so the rate only moves when new signals
+// come in. ActiveDayBuffer keeps the weighted sums up to date itself and only falls back to a
+// walk over its days when the half-life changes.
+class DecayedSignalsAggregator implements SignalsDayAggregator {
+    private double mClicks;
+    private int mDay = -1;
+    private double mImpressions;
+
+    DecayedSignalsAggregator() {
+    }
+
+    static double weight(int age, double halfLifeDays) {
+        return Math.pow(0.5d, ((double) age) / halfLifeDays);
+    }
+
+    double getHalfLifeDays() {
+        return Ranker.getCtrHalfLifeDays();
+    }
+
+    public void add(Date date, Signals value) {
+        add(DateUtil.getDay(date), value.mClicks, value.mImpressions);
+    }
+
+    public void add(int day, int clicks, int impressions) {
+        double halfLife = getHalfLifeDays();
+        if (this.mDay == -1 || day > this.mDay) {
+            if (this.mDay != -1) {
+                double scale = weight(day - this.mDay, halfLife);
+                this.mClicks *= scale;
+                this.mImpressions *= scale;
+            }
+            this.mDay = day;
+        }
+        double weight = weight(this.mDay - day, halfLife);
+        this.mClicks += ((double) clicks) * weight;
+        this.mImpressions += ((double) impressions) * weight;
+    }
+
+    public double getAggregatedScore() {
+        return SignalsAggregator.getCtr(this.mClicks, this.mImpressions);
+    }
+
+    public void reset() {
+        this.mClicks = 0.0d;
+        this.mImpressions = 0.0d;
+        this.mDay = -1;
+    }
+}
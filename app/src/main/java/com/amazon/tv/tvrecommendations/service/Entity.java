@@ -4,8 +4,8 @@ import android.content.Context;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Set;
 
@@ -13,11 +13,17 @@ class Entity {
     private double mBonus;
     private long mBonusTime;
     private LinkedHashMap<String, Bucket> mBucketList;
+    private Normalizer mCtrNormalizer;
     private DbHelper mDbHelper;
+    private boolean mDirty;
+    private final HashSet<String> mDirtyGroups;
+    private volatile int mGeneration;
     private boolean mHasPostedRecommendations;
     private String mKey;
     private HashMap<String, Long> mLastOpened;
+    private long mOutOfBoxOrder;
     private HashMap<String, Long> mRankOrder;
+    private final DecayedSignalsAggregator mDecayedSignalsAggregator;
     private final SignalsAggregator mSignalsAggregator;
 
     public Entity(Context context, DbHelper helper, String key, long lastOpenTime, long initialOrder, boolean postedRec) {
@@ -27,13 +33,16 @@ class Entity {
 
     public Entity(Context context, DbHelper helper, String key, long initialOrder, boolean postedRec) {
         this(context, helper, key);
+        this.mOutOfBoxOrder = initialOrder;
         this.mRankOrder.put(null, Long.valueOf(initialOrder));
         this.mHasPostedRecommendations = postedRec;
     }
 
     public Entity(Context ctx, DbHelper helper, String key) {
         this.mBucketList = new LinkedHashMap();
+        this.mDirtyGroups = new HashSet();
         this.mSignalsAggregator = new SignalsAggregator();
+        this.mDecayedSignalsAggregator = new DecayedSignalsAggregator();
         this.mLastOpened = new HashMap();
         this.mRankOrder = new HashMap();
         this.mDbHelper = helper;
@@ -41,6 +50,7 @@ class Entity {
         this.mBonusTime = 0;
         this.mKey = key;
         this.mHasPostedRecommendations = false;
+        this.mDirty = true;
     }
 
     public Set<String> getEntityComponents() {
@@ -49,6 +59,7 @@ class Entity {
 
     public void setLastOpenedTimeStamp(String component, long timeStamp) {
         this.mLastOpened.put(component, Long.valueOf(timeStamp));
+        markChanged();
     }
 
     public long getLastOpenedTimeStamp(String component) {
@@ -77,8 +88,20 @@ class Entity {
         return 0;
     }
 
+    // The order as stored, without filling in a component's order from the entity's like getOrder().
+    public long getStoredOrder(String component) {
+        Long rankOrder = (Long) this.mRankOrder.get(component);
+        return rankOrder != null ? rankOrder.longValue() : 0;
+    }
+
+    // The order the entity was created with, the oob_order column.
+    public long getOutOfBoxOrder() {
+        return this.mOutOfBoxOrder;
+    }
+
     public void setOrder(String component, long order) {
         this.mRankOrder.put(component, Long.valueOf(order));
+        markChanged();
     }
 
     public boolean hasPostedRecommendations() {
@@ -87,6 +110,7 @@ class Entity {
 
     public void markPostedRecommendations() {
         this.mHasPostedRecommendations = true;
+        markChanged();
     }
 
     public String getKey() {
@@ -94,8 +118,11 @@ class Entity {
     }
 
     public synchronized void onAction(int actionType, String component, String group) {
-        Date date = new Date();
-        long time = date.getTime();
+        onAction(actionType, component, group, System.currentTimeMillis());
+    }
+
+    public synchronized void onAction(int actionType, String component, String group, long time) {
+        int day = DateUtil.getDay(time);
         if (this.mDbHelper.getMostRecentTimeStamp() >= time) {
             time = this.mDbHelper.getMostRecentTimeStamp() + 1;
         }
@@ -114,26 +141,31 @@ class Entity {
                 this.mLastOpened.clear();
                 this.mBonus = 0.0d;
                 this.mBonusTime = 0;
+                if (this.mCtrNormalizer != null) {
+                    for (Bucket removed : this.mBucketList.values()) {
+                        this.mCtrNormalizer.removeNormalizeableValue(removed.getPublishedScore());
+                    }
+                }
                 this.mBucketList.clear();
+                this.mDirtyGroups.clear();
+                markChanged();
                 break;
             default:
                 Bucket bucket = getOrAddBucket(group);
                 if (bucket != null) {
                     ActiveDayBuffer buffer = bucket.getBuffer();
-                    Signals value = buffer.get(date);
-                    if (value == null) {
-                        value = new Signals();
-                    }
                     switch (actionType) {
                         case 2:
-                            value.mClicks++;
-                            buffer.set(date, value);
+                            buffer.add(day, 1, 0);
+                            publishCtr(bucket);
                             touchBucket(group);
+                            this.mDirtyGroups.add(safeGroupId(group));
                             break;
                         case 4:
-                            value.mImpressions++;
-                            buffer.set(date, value);
+                            buffer.add(day, 0, 1);
+                            publishCtr(bucket);
                             touchBucket(group);
+                            this.mDirtyGroups.add(safeGroupId(group));
                             break;
                         default:
                             break;
@@ -157,15 +189,20 @@ class Entity {
         } else {
             if (this.mBucketList.size() >= 100) {
                 String removedGroup = (String) this.mBucketList.keySet().iterator().next();
-                this.mBucketList.remove(removedGroup);
+                Bucket removed = (Bucket) this.mBucketList.remove(removedGroup);
+                if (this.mCtrNormalizer != null) {
+                    this.mCtrNormalizer.removeNormalizeableValue(removed.getPublishedScore());
+                }
+                this.mDirtyGroups.remove(removedGroup);
                 if (this.mDbHelper != null) {
                     this.mDbHelper.removeGroupData(this.mKey, removedGroup);
                 }
             }
             bucket2 = new Bucket(timeStamp);
             this.mBucketList.put(group, bucket2);
-            Bucket bucket3 = bucket2;
+            bucket = bucket2;
         }
+        this.mDirtyGroups.add(group);
         return bucket;
     }
 
@@ -203,6 +240,47 @@ class Entity {
         return buffer;
     }
 
+    public synchronized Bucket getBucket(String group) {
+        return (Bucket) this.mBucketList.get(safeGroupId(group));
+    }
+
+    private void markChanged() {
+        this.mDirty = true;
+        this.mGeneration++;
+    }
+
+    public int getGeneration() {
+        return this.mGeneration;
+    }
+
+    public synchronized boolean isDirty() {
+        return this.mDirty;
+    }
+
+    public synchronized ArrayList<String> getDirtyGroupIds() {
+        return new ArrayList(this.mDirtyGroups);
+    }
+
+    // After a failed save, so the next one writes everything again.
+    public synchronized void markDirty() {
+        this.mDirty = true;
+        for (String group : this.mBucketList.keySet()) {
+            ((Bucket) this.mBucketList.get(group)).markDirty();
+            this.mDirtyGroups.add(group);
+        }
+    }
+
+    public synchronized void clearDirty() {
+        for (String group : this.mDirtyGroups) {
+            Bucket bucket = (Bucket) this.mBucketList.get(group);
+            if (bucket != null) {
+                bucket.clearDirty();
+            }
+        }
+        this.mDirtyGroups.clear();
+        this.mDirty = false;
+    }
+
     public synchronized void setBonusValues(double bonus, long timeStamp) {
         if (((double) (timeStamp - System.currentTimeMillis())) >= Ranker.getBonusFadePeriod()) {
             this.mBonus = 0.0d;
@@ -211,6 +289,7 @@ class Entity {
             this.mBonus = bonus;
             this.mBonusTime = timeStamp;
         }
+        markChanged();
     }
 
     public double getBonus() {
@@ -235,6 +314,7 @@ class Entity {
     private void addBonusValue(double newBonus) {
         this.mBonus = getAmortizedBonus() + newBonus;
         this.mBonusTime = System.currentTimeMillis();
+        markChanged();
     }
 
     public synchronized double getCtr(Normalizer ctrNormalizer, String group) {
@@ -242,7 +322,7 @@ class Entity {
         ctr = 0.0d;
         Bucket bucket = (Bucket) this.mBucketList.get(safeGroupId(group));
         if (bucket != null) {
-            double aggregatedCtr = bucket.getBuffer().getAggregatedScore(this.mSignalsAggregator);
+            double aggregatedCtr = bucket.getBuffer().getAggregatedScore(getCtrAggregator());
             if (aggregatedCtr != -1.0d) {
                 ctr = ctrNormalizer.getNormalizedValue(aggregatedCtr);
             }
@@ -255,11 +335,48 @@ class Entity {
             if (bucket == null) {
                 break;
             } else if (bucket.getBuffer().hasData()) {
-                ctrNormalizer.addNormalizeableValue(bucket.getBuffer().getAggregatedScore(this.mSignalsAggregator));
+                ctrNormalizer.addNormalizeableValue(bucket.getBuffer().getAggregatedScore(getCtrAggregator()));
+            }
+        }
+    }
+
+    // Moves the published scores over, out of the normalizer they were in, which may be the same.
+    public synchronized void attachNormalizer(Normalizer ctrNormalizer) {
+        this.mGeneration++;
+        Normalizer previous = this.mCtrNormalizer;
+        this.mCtrNormalizer = ctrNormalizer;
+        for (Bucket bucket : this.mBucketList.values()) {
+            if (previous != null) {
+                previous.removeNormalizeableValue(bucket.getPublishedScore());
+            }
+            bucket.resetPublishedScore();
+            if (ctrNormalizer != null) {
+                ctrNormalizer.addNormalizeableValue(bucket.updatePublishedScore(getCtrAggregator()));
+            }
+        }
+    }
+
+    public synchronized void detachNormalizer() {
+        if (this.mCtrNormalizer != null) {
+            for (Bucket bucket : this.mBucketList.values()) {
+                this.mCtrNormalizer.removeNormalizeableValue(bucket.getPublishedScore());
+                bucket.resetPublishedScore();
             }
+            this.mCtrNormalizer = null;
         }
     }
 
+    private void publishCtr(Bucket bucket) {
+        this.mGeneration++;
+        if (this.mCtrNormalizer != null) {
+            this.mCtrNormalizer.addNormalizeableValue(bucket.updatePublishedScore(getCtrAggregator()));
+        }
+    }
+
+    private Aggregator<Signals> getCtrAggregator() {
+        return Ranker.isCtrDecayEnabled() ? this.mDecayedSignalsAggregator : this.mSignalsAggregator;
+    }
+
     private String safeGroupId(String id) {
         return id == null ? new String("") : id;
     }
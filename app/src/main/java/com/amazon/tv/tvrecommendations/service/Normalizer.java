@@ -7,18 +7,26 @@ class Normalizer {
         reset();
     }
 
-    public void addNormalizeableValue(double value) {
+    public synchronized void addNormalizeableValue(double value) {
         this.mSum += value;
     }
 
-    public double getNormalizedValue(double value) {
+    public synchronized void removeNormalizeableValue(double value) {
+        this.mSum -= value;
+    }
+
+    public synchronized double getNormalizedValue(double value) {
         if (this.mSum != 0.0d) {
             return value / this.mSum;
         }
         return 0.0d;
     }
 
-    public void reset() {
+    public synchronized double getSum() {
+        return this.mSum;
+    }
+
+    public synchronized void reset() {
         this.mSum = 0.0d;
     }
 }
@@ -3,6 +3,7 @@ package com.amazon.tv.tvrecommendations.service;
 import android.app.Notification;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.service.notification.StatusBarNotification;
 import android.text.TextUtils;
 import android.util.Log;
@@ -10,38 +11,66 @@ import android.util.Log;
 import com.amazon.tv.leanbacklauncher.BuildConfig;
 import com.amazon.tv.leanbacklauncher.R;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Ranker implements DbHelper.Listener {
     static RankerParameters sRankerParameters;
     private AppUsageStatistics mAppUsageStatistics;
-    private List<String> mBlacklistedPackages = new ArrayList();
+    private volatile Set<String> mBlacklistedPackages = new HashSet();
+    private final long mCreatedTime = SystemClock.elapsedRealtime();
     private final Queue<CachedAction> mCachedActions = new LinkedList();
     private Context mContext;
-    private Normalizer mCtrNormalizer = new Normalizer();
+    private volatile boolean mCtrDecayEnabled;
+    private volatile double mCtrHalfLifeDays;
+    private volatile Normalizer mCtrNormalizer = new Normalizer();
     private DbHelper mDbHelper;
-    private HashMap<String, Entity> mEntities = new HashMap();
-    private final Object mEntitiesLock = new Object();
+    private volatile ConcurrentHashMap<String, Entity> mEntities = new ConcurrentHashMap();
+    private final Object[] mKeyLocks = new Object[16];
     private List<RankingListener> mListeners = new ArrayList();
-    private boolean mQueryingScores;
+    private final ConcurrentHashMap<String, CachedScore> mScoreCache = new ConcurrentHashMap();
+    private volatile boolean mQueryingScores;
+    private boolean mReadyNotified;
+    private long mReadyTime = -1;
 
     private static class CachedAction {
         int action;
         String component;
         String group;
         String key;
+        long time;
 
-        CachedAction(String k, String c, String g, int a) {
+        CachedAction(String k, String c, String g, int a, long t) {
             this.key = k;
             this.component = c;
             this.group = g;
             this.action = a;
+            this.time = t;
+        }
+    }
+
+    // Scores for one posted notification. The base score is recomputed once the entity behind it
+    // or the app usage statistics have moved to a new generation.
+    private static class CachedScore {
+        double baseScore;
+        Entity entity;
+        int entityGeneration;
+        boolean hasBaseScore;
+        final Notification notification;
+        double score = -1.0d;
+        int usageGeneration;
+
+        CachedScore(Notification n) {
+            this.notification = n;
         }
     }
 
@@ -52,8 +81,14 @@ public class Ranker implements DbHelper.Listener {
     public Ranker(Context ctx, DbHelper dbHelper, RankerParameters rankerParameters) {
         this.mContext = ctx;
         this.mDbHelper = dbHelper;
+        for (int i = 0; i < this.mKeyLocks.length; i++) {
+            this.mKeyLocks[i] = new Object();
+        }
         this.mQueryingScores = true;
         sRankerParameters = rankerParameters;
+        this.mCtrDecayEnabled = isCtrDecayEnabled();
+        this.mCtrHalfLifeDays = getCtrHalfLifeDays();
+        this.mDbHelper.loadSnapshotImage(this);
         this.mDbHelper.getEntities(this);
         this.mAppUsageStatistics = new AppUsageStatistics(ctx);
     }
@@ -70,11 +105,44 @@ public class Ranker implements DbHelper.Listener {
         return (double) (sRankerParameters.getBonusFadePeriodDays() * 8.64E7f);
     }
 
+    public static boolean isCtrDecayEnabled() {
+        return sRankerParameters.isCtrDecayEnabled();
+    }
+
+    public static double getCtrHalfLifeDays() {
+        float halfLife = sRankerParameters.getCtrHalfLifeDays();
+        if (halfLife <= 0.0f) {
+            halfLife = RankerParameters.CTR_HALF_LIFE_DAYS_DEFAULT;
+        }
+        return (double) halfLife;
+    }
+
     public void addListener(RankingListener listener) {
+        boolean ready;
         this.mListeners.add(listener);
+        synchronized (this.mCachedActions) {
+            ready = this.mReadyNotified;
+        }
+        if (ready) {
+            listener.onRankerReady();
+        }
+    }
+
+    // Called on clean shutdown, after the pending entities were flushed, so the next start can
+    // rank from the image before the database is read.
+    public void saveSnapshot() {
+        synchronized (this.mCachedActions) {
+            if (this.mQueryingScores) {
+                return;
+            }
+        }
+        this.mDbHelper.saveSnapshotImage(new ArrayList(this.mEntities.values()), new ArrayList(this.mBlacklistedPackages));
     }
 
     public void reload() {
+        synchronized (this.mCachedActions) {
+            this.mQueryingScores = true;
+        }
         this.mDbHelper.getEntities(this);
     }
 
@@ -103,172 +171,94 @@ public class Ranker implements DbHelper.Listener {
         onAction(packageName, null, null, 0);
     }
 
+    public void onPackagesChanged() {
+        this.mAppUsageStatistics.invalidatePrivilegedApps();
+    }
+
     public void onActionPackageRemoved(String packageName) {
         if (BuildConfig.DEBUG) Log.d("Ranker", "onActionPackageRemoved: packageName=" + packageName);
         onAction(packageName, null, null, 3);
     }
 
+    // Actions batched by a client, timestamped when they happened on its side.
+    public void onActions(String[] keys, String[] groups, int[] actions, long[] times) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keys.length; i++) {
+            int actionType = actions[i];
+            if (actionType == 1 || actionType == 2 || actionType == 4) {
+                onAction(keys[i], null, groups[i], actionType, Math.min(times[i], now));
+            }
+        }
+    }
+
     private void onAction(String paramString1, String paramString2, String paramString3, int actionType) {
+        onAction(paramString1, paramString2, paramString3, actionType, System.currentTimeMillis());
+    }
+
+    private void onAction(String paramString1, String paramString2, String paramString3, int actionType, long time) {
         if (TextUtils.isEmpty(paramString1)) {
             return;
         }
-        synchronized (this.mCachedActions) {
-            if (this.mQueryingScores) {
-                if (BuildConfig.DEBUG) Log.d("Ranker", "onAction: Scores not ready, caching this action\nkey=" + paramString1 + ", component=" + paramString2 + ", group=" + paramString3 + ", actionType=" + RankerActions.actionToString(actionType));
-                this.mCachedActions.add(new CachedAction(paramString1, paramString2, paramString3, actionType));
-                return;
+        checkCtrParameters();
+        if (this.mQueryingScores) {
+            synchronized (this.mCachedActions) {
+                if (this.mQueryingScores) {
+                    if (BuildConfig.DEBUG) Log.d("Ranker", "onAction: Scores not ready, caching this action\nkey=" + paramString1 + ", component=" + paramString2 + ", group=" + paramString3 + ", actionType=" + RankerActions.actionToString(actionType));
+                    this.mCachedActions.add(new CachedAction(paramString1, paramString2, paramString3, actionType, time));
+                    return;
+                }
             }
         }
+        applyAction(paramString1, paramString2, paramString3, actionType, time);
+    }
 
-        if (BuildConfig.DEBUG) Log.d("Ranker", "onAction: key=" + paramString1 + ", component=" + paramString2 + ", group=" + paramString3 + ", actionType=" + RankerActions.actionToString(actionType));
-
-        Entity localEntity;
-
-        synchronized (this.mEntitiesLock) {
-            localEntity = this.mEntities.get(paramString1);
-
+    private void applyAction(String key, String component, String group, int actionType, long time) {
+        if (BuildConfig.DEBUG) Log.d("Ranker", "onAction: key=" + key + ", component=" + component + ", group=" + group + ", actionType=" + RankerActions.actionToString(actionType));
+        synchronized (getKeyLock(key)) {
+            ConcurrentHashMap<String, Entity> entities = this.mEntities;
+            Entity entity = (Entity) entities.get(key);
             if (actionType != 3) {
-                if (localEntity == null) {
-                    localEntity = new Entity(this.mContext, this.mDbHelper, paramString1);
-                    this.mEntities.put(paramString1, localEntity);
+                if (entity == null) {
+                    entity = getOrCreateEntity(entities, key);
                 }
-                localEntity.onAction(actionType, paramString2, paramString3);
-                this.mDbHelper.saveEntity(localEntity);
-            } else {
-                if (localEntity != null) {
-                    if (localEntity.getOrder(paramString2) != 0L) {
-                        localEntity.onAction(actionType, paramString2, null);
-                        this.mDbHelper.removeEntity(paramString1, false);
-                    }
+                entity.onAction(actionType, component, group, time);
+                this.mDbHelper.saveEntity(entity);
+            } else if (entity != null) {
+                if (entity.getOrder(component) != 0) {
+                    entity.onAction(actionType, component, null, time);
+                    this.mDbHelper.removeEntity(key, false);
                 } else {
-                    this.mEntities.remove(paramString1);
-                    this.mDbHelper.removeEntity(paramString1, true);
-
+                    if (entities.remove(key, entity)) {
+                        entity.detachNormalizer();
+                    }
+                    this.mDbHelper.removeEntity(key, true);
                 }
             }
         }
+    }
 
+    private Object getKeyLock(String key) {
+        return this.mKeyLocks[(key.hashCode() & Integer.MAX_VALUE) % this.mKeyLocks.length];
+    }
 
-        /*
-        r8 = this;
-        r1 = android.text.TextUtils.isEmpty(r9);
-        if (r1 == 0) goto L_0x0007;
-    L_0x0006:
-        return;
-    L_0x0007:
-        r2 = r8.mCachedActions;
-        monitor-enter(r2);
-        r1 = r8.mQueryingScores;	 Catch:{ all -> 0x0054 }
-        if (r1 == 0) goto L_0x0057;
-    L_0x000e:
-        r1 = "Ranker";
-        r3 = new java.lang.StringBuilder;	 Catch:{ all -> 0x0054 }
-        r3.<init>();	 Catch:{ all -> 0x0054 }
-        r4 = "onAction: Scores not ready, caching this action\nkey=";
-        r3 = r3.append(r4);	 Catch:{ all -> 0x0054 }
-        r3 = r3.append(r9);	 Catch:{ all -> 0x0054 }
-        r4 = ", component=";
-        r3 = r3.append(r4);	 Catch:{ all -> 0x0054 }
-        r3 = r3.append(r10);	 Catch:{ all -> 0x0054 }
-        r4 = ", group=";
-        r3 = r3.append(r4);	 Catch:{ all -> 0x0054 }
-        r3 = r3.append(r11);	 Catch:{ all -> 0x0054 }
-        r4 = ", actionType=";
-        r3 = r3.append(r4);	 Catch:{ all -> 0x0054 }
-        r4 = RankerActions.actionToString(r12);	 Catch:{ all -> 0x0054 }
-        r3 = r3.append(r4);	 Catch:{ all -> 0x0054 }
-        r3 = r3.toString();	 Catch:{ all -> 0x0054 }
-        android.util.Log.d(r1, r3);	 Catch:{ all -> 0x0054 }
-        r1 = r8.mCachedActions;	 Catch:{ all -> 0x0054 }
-        r3 = new Ranker$CachedAction;	 Catch:{ all -> 0x0054 }
-        r3.<init>(r9, r10, r11, r12);	 Catch:{ all -> 0x0054 }
-        r1.add(r3);	 Catch:{ all -> 0x0054 }
-        monitor-exit(r2);	 Catch:{ all -> 0x0054 }
-        goto L_0x0006;
-    L_0x0054:
-        r1 = move-exception;
-        monitor-exit(r2);	 Catch:{ all -> 0x0054 }
-        throw r1;
-    L_0x0057:
-        monitor-exit(r2);	 Catch:{ all -> 0x0054 }
-        r1 = "Ranker";
-        r2 = new java.lang.StringBuilder;
-        r2.<init>();
-        r3 = "onAction: key=";
-        r2 = r2.append(r3);
-        r2 = r2.append(r9);
-        r3 = ", component=";
-        r2 = r2.append(r3);
-        r2 = r2.append(r10);
-        r3 = ", group=";
-        r2 = r2.append(r3);
-        r2 = r2.append(r11);
-        r3 = ", actionType=";
-        r2 = r2.append(r3);
-        r3 = RankerActions.actionToString(r12);
-        r2 = r2.append(r3);
-        r2 = r2.toString();
-        android.util.Log.d(r1, r2);
-        r2 = r8.mEntitiesLock;
-        monitor-enter(r2);
-        r1 = r8.mEntities;	 Catch:{ all -> 0x00b9 }
-        r0 = r1.get(r9);	 Catch:{ all -> 0x00b9 }
-        r0 = (Entity) r0;	 Catch:{ all -> 0x00b9 }
-        r1 = 3;
-        if (r12 != r1) goto L_0x00c8;
-    L_0x00a0:
-        if (r0 == 0) goto L_0x00b6;
-    L_0x00a2:
-        r4 = r0.getOrder(r10);	 Catch:{ all -> 0x00b9 }
-        r6 = 0;
-        r1 = (r4 > r6 ? 1 : (r4 == r6 ? 0 : -1));
-        if (r1 == 0) goto L_0x00bc;
-    L_0x00ac:
-        r1 = 0;
-        r0.onAction(r12, r10, r1);	 Catch:{ all -> 0x00b9 }
-        r1 = r8.mDbHelper;	 Catch:{ all -> 0x00b9 }
-        r3 = 0;
-        r1.removeEntity(r9, r3);	 Catch:{ all -> 0x00b9 }
-    L_0x00b6:
-        monitor-exit(r2);	 Catch:{ all -> 0x00b9 }
-        goto L_0x0006;
-    L_0x00b9:
-        r1 = move-exception;
-        monitor-exit(r2);	 Catch:{ all -> 0x00b9 }
-        throw r1;
-    L_0x00bc:
-        r1 = r8.mEntities;	 Catch:{ all -> 0x00b9 }
-        r1.remove(r9);	 Catch:{ all -> 0x00b9 }
-        r1 = r8.mDbHelper;	 Catch:{ all -> 0x00b9 }
-        r3 = 1;
-        r1.removeEntity(r9, r3);	 Catch:{ all -> 0x00b9 }
-        goto L_0x00b6;
-    L_0x00c8:
-        if (r0 != 0) goto L_0x00d8;
-    L_0x00ca:
-        r0 = new Entity;	 Catch:{ all -> 0x00b9 }
-        r1 = r8.mContext;	 Catch:{ all -> 0x00b9 }
-        r3 = r8.mDbHelper;	 Catch:{ all -> 0x00b9 }
-        r0.<init>(r1, r3, r9);	 Catch:{ all -> 0x00b9 }
-        r1 = r8.mEntities;	 Catch:{ all -> 0x00b9 }
-        r1.put(r9, r0);	 Catch:{ all -> 0x00b9 }
-    L_0x00d8:
-        r0.onAction(r12, r10, r11);	 Catch:{ all -> 0x00b9 }
-        r1 = r8.mDbHelper;	 Catch:{ all -> 0x00b9 }
-        r1.saveEntity(r0);	 Catch:{ all -> 0x00b9 }
-        goto L_0x00b6;
-        */
-//        throw new UnsupportedOperationException("Method not decompiled: Ranker.onAction(java.lang.String, java.lang.String, java.lang.String, int):void");
+    private Entity getOrCreateEntity(ConcurrentHashMap<String, Entity> entities, String key) {
+        Entity entity = (Entity) entities.get(key);
+        if (entity != null) {
+            return entity;
+        }
+        Entity created = new Entity(this.mContext, this.mDbHelper, key);
+        entity = (Entity) entities.putIfAbsent(key, created);
+        if (entity != null) {
+            return entity;
+        }
+        created.attachNormalizer(this.mCtrNormalizer);
+        return created;
     }
 
     public void markPostedRecommendations(String packageName) {
         if (BuildConfig.DEBUG) Log.d("Ranker", "markPostedRecommendations: packageName=" + packageName);
-        synchronized (this.mEntitiesLock) {
-            Entity entity = (Entity) this.mEntities.get(packageName);
-            if (entity == null) {
-                entity = new Entity(this.mContext, this.mDbHelper, packageName);
-                this.mEntities.put(packageName, entity);
-            }
+        synchronized (getKeyLock(packageName)) {
+            Entity entity = getOrCreateEntity(this.mEntities, packageName);
             if (!entity.hasPostedRecommendations()) {
                 entity.markPostedRecommendations();
                 this.mDbHelper.saveEntity(entity);
@@ -276,10 +266,50 @@ public class Ranker implements DbHelper.Listener {
         }
     }
 
+    Entity getEntity(String key) {
+        return (Entity) this.mEntities.get(key);
+    }
+
+    int getUsageGeneration() {
+        return this.mAppUsageStatistics.getGeneration();
+    }
+
+    Normalizer getCtrNormalizer() {
+        return this.mCtrNormalizer;
+    }
+
+    // Actions go on while this runs, into whichever normalizer an entity is attached to. A fresh
+    // one is installed first and entities are moved over under their key locks, where they are also
+    // created and removed. One created in the meantime is already in it and may be reached by the
+    // walk too; attaching again takes its scores out before adding them, so it still counts once.
     public void prepNormalizationValues() {
-        this.mCtrNormalizer.reset();
-        for (Entity e : this.mEntities.values()) {
-            e.addNormalizeableValues(this.mCtrNormalizer);
+        Normalizer normalizer = new Normalizer();
+        this.mCtrNormalizer = normalizer;
+        ConcurrentHashMap<String, Entity> entities = this.mEntities;
+        for (Entity e : entities.values()) {
+            synchronized (getKeyLock(e.getKey())) {
+                if (entities.get(e.getKey()) == e) {
+                    e.attachNormalizer(normalizer);
+                }
+            }
+        }
+    }
+
+    // Entities publish scores of whichever CTR aggregator the flags pick at the time, so after a
+    // flag or half-life change the published ones are recomputed. Callers must not hold a key lock.
+    private void checkCtrParameters() {
+        boolean decayEnabled = isCtrDecayEnabled();
+        double halfLifeDays = getCtrHalfLifeDays();
+        if (decayEnabled == this.mCtrDecayEnabled && halfLifeDays == this.mCtrHalfLifeDays) {
+            return;
+        }
+        synchronized (this.mCachedActions) {
+            if (decayEnabled != this.mCtrDecayEnabled || halfLifeDays != this.mCtrHalfLifeDays) {
+                if (BuildConfig.DEBUG) Log.d("Ranker", "checkCtrParameters: decay " + decayEnabled + ", half-life " + halfLifeDays + " days, republishing");
+                this.mCtrDecayEnabled = decayEnabled;
+                this.mCtrHalfLifeDays = halfLifeDays;
+                prepNormalizationValues();
+            }
         }
     }
 
@@ -296,109 +326,159 @@ public class Ranker implements DbHelper.Listener {
     }
 
     public double getBaseNotificationScore(StatusBarNotification sbn) {
-        Bundle extras = sbn.getNotification().extras;
-        if (extras != null && extras.containsKey("cached_base_score")) {
-            return extras.getDouble("cached_base_score");
-        }
-        double value = -100.0d;
+        checkCtrParameters();
+        CachedScore cached = getCachedScore(sbn);
         String packageName = sbn.getPackageName();
         Notification notif = sbn.getNotification();
+        Entity entity = null;
         if (!(notif == null || TextUtils.isEmpty(packageName))) {
-            Entity entity;
-            synchronized (this.mEntitiesLock) {
-                entity = (Entity) this.mEntities.get(packageName);
-            }
-            if (entity != null) {
-                double ctr = getCachedCtr(sbn);
-                if (ctr == -1.0d) {
-                    ctr = entity.getCtr(this.mCtrNormalizer, notif.getGroup());
-                    cacheCtr(sbn, ctr);
-                }
-                double rawScore = getRawScore(notif);
-                double appUsageScore = this.mAppUsageStatistics.getAppUsageScore(entity.getKey());
-                double amortizedBonus = entity.getAmortizedBonus();
-                double scorePerturbation = 0.0d;
-                if (extras != null) {
-                    CharSequence title = (CharSequence) extras.get("android.title");
-                    if (title != null) {
-                        scorePerturbation = ((((double) title.hashCode()) / 2.147483647E9d) / 2.0d) + 0.5d;
-                    }
+            entity = (Entity) this.mEntities.get(packageName);
+        }
+        int entityGeneration = entity != null ? entity.getGeneration() : -1;
+        int usageGeneration = entity != null ? this.mAppUsageStatistics.getGeneration() : -1;
+        if (cached.hasBaseScore && cached.entity == entity && cached.entityGeneration == entityGeneration && cached.usageGeneration == usageGeneration) {
+            return cached.baseScore;
+        }
+        double value = -100.0d;
+        if (entity != null) {
+            double ctr = entity.getCtr(this.mCtrNormalizer, notif.getGroup());
+            double rawScore = getRawScore(notif);
+            double appUsageScore = this.mAppUsageStatistics.getAppUsageScore(entity.getKey());
+            double amortizedBonus = entity.getAmortizedBonus();
+            double scorePerturbation = 0.0d;
+            Bundle extras = notif.extras;
+            if (extras != null) {
+                CharSequence title = (CharSequence) extras.get("android.title");
+                if (title != null) {
+                    scorePerturbation = ((((double) title.hashCode()) / 2.147483647E9d) / 2.0d) + 0.5d;
                 }
-                value = ((1.0d / (1.0d + Math.exp(-(((((0.25d * ctr) + (0.25d * amortizedBonus)) + (0.25d * rawScore)) + (0.25d * appUsageScore)) + (0.01d * scorePerturbation))))) - 0.5d) * 2.0d;
             }
+            value = ((1.0d / (1.0d + Math.exp(-(((((0.25d * ctr) + (0.25d * amortizedBonus)) + (0.25d * rawScore)) + (0.25d * appUsageScore)) + (0.01d * scorePerturbation))))) - 0.5d) * 2.0d;
         }
-        if (extras == null) {
-            extras = new Bundle();
-            sbn.getNotification().extras = extras;
-        }
-        extras.putDouble("cached_base_score", value);
+        cached.entity = entity;
+        cached.entityGeneration = entityGeneration;
+        cached.usageGeneration = usageGeneration;
+        cached.baseScore = value;
+        cached.hasBaseScore = true;
         return value;
     }
 
-    private double getCachedCtr(StatusBarNotification sbn) {
-        Bundle extras = sbn.getNotification().extras;
-        if (extras == null || !extras.containsKey("cached_ctr")) {
-            return -1.0d;
+    private CachedScore getCachedScore(StatusBarNotification sbn) {
+        CachedScore cached = (CachedScore) this.mScoreCache.get(sbn.getKey());
+        if (cached == null || cached.notification != sbn.getNotification()) {
+            cached = new CachedScore(sbn.getNotification());
+            this.mScoreCache.put(sbn.getKey(), cached);
         }
-        return extras.getDouble("cached_ctr");
-    }
-
-    private void cacheCtr(StatusBarNotification sbn, double ctr) {
-        Bundle extras = sbn.getNotification().extras;
-        if (extras == null) {
-            extras = new Bundle();
-            sbn.getNotification().extras = extras;
-        }
-        extras.putDouble("cached_ctr", ctr);
+        return cached;
     }
 
     public double getCachedNotificationScore(StatusBarNotification sbn) {
-        Bundle extras = sbn.getNotification().extras;
-        if (extras == null || !extras.containsKey("cached_score")) {
+        CachedScore cached = (CachedScore) this.mScoreCache.get(sbn.getKey());
+        if (cached == null || cached.notification != sbn.getNotification()) {
             return -1.0d;
         }
-        return extras.getDouble("cached_score");
+        return cached.score;
     }
 
     private void cacheScore(StatusBarNotification sbn, double score) {
-        Bundle extras = sbn.getNotification().extras;
-        if (extras == null) {
-            extras = new Bundle();
-            sbn.getNotification().extras = extras;
+        getCachedScore(sbn).score = score;
+    }
+
+    void removeCachedScore(StatusBarNotification sbn) {
+        this.mScoreCache.remove(sbn.getKey());
+    }
+
+    void clearCachedScores() {
+        this.mScoreCache.clear();
+    }
+
+    // Actions arriving while mQueryingScores is set are queued in arrival order. The new map is
+    // installed and the queue replayed while holding mCachedActions, and the flag is only cleared
+    // after that, so a caller that saw the flag set waits here and its action lands after the replay.
+    // Packages with recommendations may be installed earlier by onTopEntitiesLoaded so ranking can
+    // start, but actions keep queueing until the full set is here. The snapshot image decoded in
+    // the background at construction counts as such an early set, in which case the database's own
+    // one is skipped; neither is taken once the full set is in.
+    public void onTopEntitiesLoaded(HashMap<String, Entity> entities, List<String> blacklistedPackages) {
+        if (BuildConfig.DEBUG) Log.d("Ranker", "onTopEntitiesLoaded: " + entities.size() + " entities");
+        synchronized (this.mCachedActions) {
+            if (this.mReadyNotified || !this.mQueryingScores) {
+                return;
+            }
+            for (Entity e : this.mEntities.values()) {
+                e.attachNormalizer(null);
+            }
+            this.mEntities = new ConcurrentHashMap(entities);
+            this.mBlacklistedPackages = new HashSet(blacklistedPackages);
+            prepNormalizationValues();
+            this.mReadyNotified = true;
+            markReady();
+        }
+        for (RankingListener listener : this.mListeners) {
+            listener.onRankerReady();
         }
-        extras.putDouble("cached_score", score);
     }
 
     public void onEntitiesLoaded(HashMap<String, Entity> entities, List<String> blacklistedPackages) {
-        int partnerLength = 0;
+        boolean notifyReady;
         if (BuildConfig.DEBUG) Log.d("Ranker", "onEntitiesLoaded:\n\tentities=" + entities + "\n\tblacklistedPackages=" + blacklistedPackages);
-        synchronized (this.mEntitiesLock) {
-            this.mEntities = entities;
-            this.mBlacklistedPackages = blacklistedPackages;
-        }
         synchronized (this.mCachedActions) {
-            this.mQueryingScores = false;
+            for (Entity e : this.mEntities.values()) {
+                e.attachNormalizer(null);
+            }
+            this.mEntities = new ConcurrentHashMap(entities);
+            this.mBlacklistedPackages = new HashSet(blacklistedPackages);
+            prepNormalizationValues();
             if (BuildConfig.DEBUG) Log.d("Ranker", "onEntitiesLoaded: Scores retrieved, playing back " + this.mCachedActions.size() + " actions");
             while (!this.mCachedActions.isEmpty()) {
                 CachedAction action = (CachedAction) this.mCachedActions.remove();
-                onAction(action.key, action.component, action.group, action.action);
+                applyAction(action.key, action.component, action.group, action.action, action.time);
             }
-            if (!DateUtil.initialRankingApplied(this.mContext)) {
-                String[] outOfBoxOrder = this.mContext.getResources().getStringArray(R.array.out_of_box_order);
-                String[] partnerOutOfBoxOrder = ServicePartner.get(this.mContext).getOutOfBoxOrder();
-                if (partnerOutOfBoxOrder != null) {
-                    partnerLength = partnerOutOfBoxOrder.length;
-                }
-                int totalOrderings = outOfBoxOrder.length + partnerLength;
-                if (partnerOutOfBoxOrder != null) {
-                    applyOutOfBoxOrdering(partnerOutOfBoxOrder, 0, totalOrderings);
-                }
-                applyOutOfBoxOrdering(outOfBoxOrder, partnerLength, totalOrderings);
-                DateUtil.setInitialRankingAppliedFlag(this.mContext, true);
+            applyInitialRanking();
+            this.mQueryingScores = false;
+            notifyReady = !this.mReadyNotified;
+            this.mReadyNotified = false;
+            markReady();
+        }
+        if (notifyReady) {
+            for (RankingListener listener : this.mListeners) {
+                listener.onRankerReady();
             }
         }
-        for (RankingListener listener : this.mListeners) {
-            listener.onRankerReady();
+    }
+
+    private void markReady() {
+        if (this.mReadyTime == -1) {
+            this.mReadyTime = SystemClock.elapsedRealtime() - this.mCreatedTime;
+            if (BuildConfig.DEBUG) Log.d("Ranker", "ready " + this.mReadyTime + "ms after start");
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        synchronized (this.mCachedActions) {
+            if (this.mReadyTime == -1) {
+                writer.println(prefix + "ranker not ready yet, " + this.mCachedActions.size() + " actions queued");
+            } else {
+                writer.println(prefix + "ranker ready " + this.mReadyTime + "ms after start");
+            }
+        }
+    }
+
+    // The out-of-box order, once per install.
+    void applyInitialRanking() {
+        if (!DateUtil.initialRankingApplied(this.mContext)) {
+            int partnerLength = 0;
+            String[] outOfBoxOrder = this.mContext.getResources().getStringArray(R.array.out_of_box_order);
+            String[] partnerOutOfBoxOrder = ServicePartner.get(this.mContext).getOutOfBoxOrder();
+            if (partnerOutOfBoxOrder != null) {
+                partnerLength = partnerOutOfBoxOrder.length;
+            }
+            int totalOrderings = outOfBoxOrder.length + partnerLength;
+            if (partnerOutOfBoxOrder != null) {
+                applyOutOfBoxOrdering(partnerOutOfBoxOrder, 0, totalOrderings);
+            }
+            applyOutOfBoxOrdering(outOfBoxOrder, partnerLength, totalOrderings);
+            DateUtil.setInitialRankingAppliedFlag(this.mContext, true);
         }
     }
 
@@ -410,11 +490,11 @@ public class Ranker implements DbHelper.Listener {
             int size = order.length;
             for (int i = 0; i < size; i++) {
                 String key = order[(size - i) - 1];
-                if (!this.mEntities.containsKey(key)) {
-                    int score = (entitiesBelow + i) + 1;
-                    Entity e = new Entity(this.mContext, this.mDbHelper, key, (long) score, (long) ((entitiesBelow + size) - i), true);
-                    e.setBonusValues(((double) sRankerParameters.getOutOfBoxBonus()) * (((double) score) / bonusSum), new Date().getTime());
-                    this.mEntities.put(key, e);
+                int score = (entitiesBelow + i) + 1;
+                Entity e = new Entity(this.mContext, this.mDbHelper, key, (long) score, (long) ((entitiesBelow + size) - i), true);
+                e.setBonusValues(((double) sRankerParameters.getOutOfBoxBonus()) * (((double) score) / bonusSum), new Date().getTime());
+                if (this.mEntities.putIfAbsent(key, e) == null) {
+                    e.attachNormalizer(this.mCtrNormalizer);
                     this.mDbHelper.saveEntity(e);
                 }
             }
@@ -1,12 +1,20 @@
 package com.amazon.tv.tvrecommendations.service;
 
 public abstract class RankerParameters {
+    static final float BATCH_MAX_DELAY_MS_DEFAULT = 500.0f;
+    static final float BATCH_MAX_SIZE_DEFAULT = 64.0f;
     static final float BONUS_FADE_PERIOD_DAYS_DEFAULT = 0.5f;
+    static final float CTR_DECAY_ENABLED_DEFAULT = 0.0f;
+    static final float CTR_HALF_LIFE_DAYS_DEFAULT = 7.0f;
     static final float GROUP_STARTER_SCORE_DEFAULT = 0.001f;
     static final float INSTALL_BONUS_DEFAULT = 0.3f;
     static final float OUT_OF_BOX_BONUS_DEFAULT = 0.005f;
     static final float SPREAD_FACTOR_DEFAULT = 1.0f;
+    private float mBatchMaxDelayMs;
+    private float mBatchMaxSize;
     private float mBonusFadePeriodDays;
+    private float mCtrDecayEnabled;
+    private float mCtrHalfLifeDays;
     private float mGroupStarterScore;
     private float mInstallBonus;
     private Object mLastVersionToken = null;
@@ -26,6 +34,10 @@ public abstract class RankerParameters {
             this.mInstallBonus = getFloat("rec_ranker_install_bonus", INSTALL_BONUS_DEFAULT);
             this.mOutOfBoxBonus = getFloat("rec_ranker_out_of_box_bonus", OUT_OF_BOX_BONUS_DEFAULT);
             this.mBonusFadePeriodDays = getFloat("bonus_fade_period_days", BONUS_FADE_PERIOD_DAYS_DEFAULT);
+            this.mBatchMaxDelayMs = getFloat("rec_batch_max_delay_ms", BATCH_MAX_DELAY_MS_DEFAULT);
+            this.mBatchMaxSize = getFloat("rec_batch_max_size", BATCH_MAX_SIZE_DEFAULT);
+            this.mCtrDecayEnabled = getFloat("rec_ranker_ctr_decay_enabled", CTR_DECAY_ENABLED_DEFAULT);
+            this.mCtrHalfLifeDays = getFloat("rec_ranker_ctr_half_life_days", CTR_HALF_LIFE_DAYS_DEFAULT);
         }
     }
 
@@ -53,4 +65,24 @@ public abstract class RankerParameters {
         checkUpdateGservicesFlags();
         return this.mBonusFadePeriodDays;
     }
+
+    public final float getBatchMaxDelayMs() {
+        checkUpdateGservicesFlags();
+        return this.mBatchMaxDelayMs;
+    }
+
+    public final float getBatchMaxSize() {
+        checkUpdateGservicesFlags();
+        return this.mBatchMaxSize;
+    }
+
+    public final boolean isCtrDecayEnabled() {
+        checkUpdateGservicesFlags();
+        return this.mCtrDecayEnabled != 0.0f;
+    }
+
+    public final float getCtrHalfLifeDays() {
+        checkUpdateGservicesFlags();
+        return this.mCtrHalfLifeDays;
+    }
 }
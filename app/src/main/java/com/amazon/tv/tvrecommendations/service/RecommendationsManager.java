@@ -7,45 +7,77 @@ import android.content.pm.ApplicationInfo;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Point;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.service.notification.StatusBarNotification;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.amazon.tv.leanbacklauncher.BuildConfig;
 import com.amazon.tv.leanbacklauncher.R;
 import com.amazon.tv.tvrecommendations.IRecommendationsClient;
 import com.amazon.tv.tvrecommendations.RecommendationsClient;
+import com.amazon.tv.tvrecommendations.SharedImage;
 import com.amazon.tv.tvrecommendations.TvRecommendation;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class RecommendationsManager implements Ranker.RankingListener {
     @SuppressLint({"StaticFieldLeak"})
     private static RecommendationsManager sInstance = null;
     private ServiceAppListener mAppListener;
+    private long mBatchCount;
+    private long mBatchOperationsIn;
+    private long mBatchOperationsOut;
+    private final Object mBatchStatsLock = new Object();
     private int mBannerMaxHeight;
     private int mBannerMaxWidth;
     private int mCardMaxHeight;
     private int mCardMaxWidth;
+    private CaptivePortalTracker mCaptivePortalTracker;
     private final ClientHandler mClientHandler = new ClientHandler();
     private boolean mConnectedToNotificationService = false;
     private final Context mContext;
     private DbHelper mDbHelper;
     private int mMaxRecsPerApp;
     private NotificationResolver mNotificationResolver;
-    private final HashMap<String, ArrayList<StatusBarNotification>> mPackageToRecSet = new HashMap<>();
+    private final HashMap<String, RecSet> mPackageToRecSet = new HashMap<>();
     private final ArrayList<StatusBarNotification> mPartnerList = new ArrayList<>();
     private Ranker mRanker;
+    private final RankerParameters mRankerParameters;
+    private final LruCache<String, Bitmap> mImageCache = new LruCache<String, Bitmap>((int) Math.min(Runtime.getRuntime().maxMemory() / 16, 8388608)) {
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+            if (oldValue != newValue) {
+                releaseSharedImage(key);
+            }
+        }
+    };
+    private final HashMap<String, SharedImage> mSharedImages = new HashMap<>();
+    private final ThreadPoolExecutor mImageExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue(64));
     private boolean mRankerReady = false;
     private boolean mStarted;
     private final String mTag;
@@ -60,6 +92,8 @@ class RecommendationsManager implements Ranker.RankingListener {
 
     @SuppressLint({"HandlerLeak"})
     private class ClientHandler extends Handler {
+        private static final long BATCH_QUIET_PERIOD_MS = 100;
+        private long mBatchDeadline;
         private final List<StatusBarNotification> mCaptivePortalPosted;
         private final List<StatusBarNotification> mCaptivePortalRemoved;
         private final List<StatusBarNotification> mCaptivePortalShowing;
@@ -76,11 +110,11 @@ class RecommendationsManager implements Ranker.RankingListener {
             this.mRecBatch = new ArrayList();
         }
 
-        public void registerNotificationsClient(IRecommendationsClient client, boolean isPartnerClient) {
+        public void registerNotificationsClient(IRecommendationsClient client, boolean isPartnerClient, int version) {
             if (isPartnerClient) {
-                this.mPartnerClients.register(client);
+                this.mPartnerClients.register(client, Integer.valueOf(version));
             } else {
-                this.mClients.register(client);
+                this.mClients.register(client, Integer.valueOf(version));
             }
         }
 
@@ -110,6 +144,7 @@ class RecommendationsManager implements Ranker.RankingListener {
             removeMessages(4);
             removeMessages(5);
             this.mRecBatch.clear();
+            this.mBatchDeadline = 0;
             this.mCaptivePortalPosted.clear();
             this.mCaptivePortalShowing.clear();
             this.mCaptivePortalRemoved.clear();
@@ -119,14 +154,29 @@ class RecommendationsManager implements Ranker.RankingListener {
 
         public synchronized void enqueueNotificationPosted(StatusBarNotification sbn) {
             this.mRecBatch.add(RecOperation.newAdd(sbn));
-            removeMessages(1);
-            sendEmptyMessageDelayed(1, 100);
+            scheduleBatch();
         }
 
         public synchronized void enqueueNotificationRemoved(StatusBarNotification sbn) {
             this.mRecBatch.add(RecOperation.newRemove(sbn));
+            scheduleBatch();
+        }
+
+        // A batch goes out once postings pause for the quiet period, but never later than the
+        // maximum delay after its first operation, or right away once it reaches the maximum size.
+        // A steady stream, like the replay when the listener connects, then yields a few large
+        // batches instead of postponing everything until it ends.
+        private void scheduleBatch() {
+            long now = SystemClock.uptimeMillis();
+            if (this.mBatchDeadline == 0) {
+                this.mBatchDeadline = now + ((long) RecommendationsManager.this.mRankerParameters.getBatchMaxDelayMs());
+            }
             removeMessages(1);
-            sendEmptyMessageDelayed(1, 100);
+            if (this.mRecBatch.size() >= ((int) RecommendationsManager.this.mRankerParameters.getBatchMaxSize())) {
+                sendEmptyMessage(1);
+            } else {
+                sendEmptyMessageAtTime(1, Math.min(now + BATCH_QUIET_PERIOD_MS, this.mBatchDeadline));
+            }
         }
 
         public void enqueueConnectionStatus(boolean connected) {
@@ -175,6 +225,8 @@ class RecommendationsManager implements Ranker.RankingListener {
                     return "MSG_CAPTIVE_PORTAL_POSTED (" + messageCode + ")";
                 case 5:
                     return "MSG_CAPTIVE_PORTAL_REMOVED (" + messageCode + ")";
+                case 6:
+                    return "MSG_IMAGE_PROCESSED (" + messageCode + ")";
                 default:
                     return "UNKNOWN (" + messageCode + ")";
             }
@@ -192,11 +244,14 @@ class RecommendationsManager implements Ranker.RankingListener {
                     case 1: // MSG_NOTIFICATION
                         RecommendationsManager.this.recommendationBatchPostedInt(this.mClients, this.mPartnerClients, this.mRecBatch);
                         this.mRecBatch.clear();
+                        this.mBatchDeadline = 0;
                         break;
                     case 2: // MSG_NOTIFICATION_RESET
+                        removeMessages(1);
                         RecommendationsManager.this.onRecommendationsReset(this.mClients, this.mPartnerClients, this.mRecBatch);
                         RecommendationsManager.this.recommendationBatchPostedInt(this.mClients, this.mPartnerClients, this.mRecBatch);
                         this.mRecBatch.clear();
+                        this.mBatchDeadline = 0;
                         break;
                     case 3: // MSG_CONNECTION_STATUS
                         RecommendationsManager recommendationsManager = RecommendationsManager.this;
@@ -225,30 +280,78 @@ class RecommendationsManager implements Ranker.RankingListener {
                         this.mCaptivePortalShowing.removeAll(this.mCaptivePortalRemoved);
                         this.mCaptivePortalRemoved.clear();
                         break;
+                    case 6: // MSG_IMAGE_PROCESSED
+                        ProcessedImage image = (ProcessedImage) msg.obj;
+                        RecommendationsManager.this.onRecommendationImageProcessed(this.mClients, image.mNotification, image.mBitmap);
+                        break;
                 }
             }
         }
     }
 
-    private static class NotificationComparator implements Comparator<StatusBarNotification> {
-        private final Context mContext;
-        private final Ranker mRanker;
+    private static class ProcessedImage {
+        final Bitmap mBitmap;
+        final StatusBarNotification mNotification;
+
+        ProcessedImage(StatusBarNotification notification, Bitmap bitmap) {
+            this.mNotification = notification;
+            this.mBitmap = bitmap;
+        }
+    }
+
+    // An entry of a package's rec set with the key it was ordered by. Base scores move with the
+    // package's entity, e.g. when batched impressions change its click-through rate, so the key is
+    // kept rather than asked for again while searching the set. mPosition is the slot its adjusted
+    // score was last calculated for.
+    private static class RankedRecommendation {
+        boolean mCaptivePortal;
+        final StatusBarNotification mNotification;
+        int mPosition = -1;
+        double mScore;
+
+        RankedRecommendation(StatusBarNotification notification) {
+            this.mNotification = notification;
+        }
+
+        void updateKey(CaptivePortalTracker captivePortalTracker, Ranker ranker) {
+            this.mCaptivePortal = captivePortalTracker.isCaptivePortal(this.mNotification);
+            this.mScore = ranker.getBaseNotificationScore(this.mNotification);
+        }
+    }
 
-        public NotificationComparator(Context context, Ranker ranker) {
-            this.mContext = context;
-            this.mRanker = ranker;
+    // A package's rec set, sorted by the keys its entries hold. They are refreshed once the base
+    // scores may have moved, i.e. when the package's entity or the app usage statistics changed
+    // since the keys were taken.
+    private static class RecSet extends ArrayList<RankedRecommendation> {
+        private Entity mEntity;
+        private int mEntityGeneration = -1;
+        private int mUsageGeneration = -1;
+
+        // Returns whether the keys are stale, and takes them as current from here on.
+        boolean checkGeneration(Ranker ranker, String packageName) {
+            Entity entity = ranker.getEntity(packageName);
+            int entityGeneration = entity != null ? entity.getGeneration() : -1;
+            int usageGeneration = ranker.getUsageGeneration();
+            boolean stale = entity != this.mEntity || entityGeneration != this.mEntityGeneration || usageGeneration != this.mUsageGeneration;
+            this.mEntity = entity;
+            this.mEntityGeneration = entityGeneration;
+            this.mUsageGeneration = usageGeneration;
+            return stale;
         }
+    }
 
-        public int compare(StatusBarNotification o1, StatusBarNotification o2) {
-            if (RecommendationsUtil.isCaptivePortal(this.mContext, o1) && !RecommendationsUtil.isCaptivePortal(this.mContext, o2)) {
+    // Best first.
+    private static final Comparator<RankedRecommendation> RANKED_ORDER = new Comparator<RankedRecommendation>() {
+        public int compare(RankedRecommendation o1, RankedRecommendation o2) {
+            if (o2.mCaptivePortal && !o1.mCaptivePortal) {
                 return -1;
             }
-            if (RecommendationsUtil.isCaptivePortal(this.mContext, o1) || !RecommendationsUtil.isCaptivePortal(this.mContext, o2)) {
-                return Double.compare(this.mRanker.getBaseNotificationScore(o1), this.mRanker.getBaseNotificationScore(o2));
+            if (o2.mCaptivePortal || !o1.mCaptivePortal) {
+                return Double.compare(o2.mScore, o1.mScore);
             }
             return 1;
         }
-    }
+    };
 
     private static class RecOperation {
         private final StatusBarNotification mNotification;
@@ -310,6 +413,7 @@ class RecommendationsManager implements Ranker.RankingListener {
         this.mTag = unbundled ? "UB-RecommendationsManager" : "B-RecommendationsManager";
         Log.d(this.mTag, "RecommendationsManager(Context)");
         this.mContext = context;
+        this.mRankerParameters = rankerParameters;
         Resources res = context.getResources();
         this.mCardMaxWidth = res.getDimensionPixelOffset(R.dimen.notif_card_img_max_width);
         this.mCardMaxHeight = res.getDimensionPixelOffset(R.dimen.notif_card_img_height);
@@ -317,9 +421,11 @@ class RecommendationsManager implements Ranker.RankingListener {
         this.mBannerMaxHeight = res.getDimensionPixelOffset(R.dimen.banner_height);
         this.mMaxRecsPerApp = res.getInteger(R.integer.max_recommendations_per_app);
         this.mDbHelper = DbHelper.getInstance(context);
+        this.mCaptivePortalTracker = CaptivePortalTracker.getInstance(context);
         this.mRanker = new Ranker(context, this.mDbHelper, rankerParameters);
         this.mRanker.addListener(this);
         this.mAppListener = new ServiceAppListener(context, this.mRanker);
+        this.mImageExecutor.allowCoreThreadTimeOut(true);
     }
 
     public static RecommendationsManager getInstance(Context context, boolean unbundled, RankerParametersFactory rankerParametersFactory) {
@@ -337,6 +443,13 @@ class RecommendationsManager implements Ranker.RankingListener {
         this.mAppListener.onDestroy();
     }
 
+    // Only called from BaseRecommendationsService.onDestroy. The flush has to be done before the
+    // image is taken, writeSnapshotImage() skips it while saves are pending.
+    void saveRankingSnapshot() {
+        this.mDbHelper.flushNow();
+        this.mRanker.saveSnapshot();
+    }
+
     boolean isConnectedToNotificationService() {
         return this.mConnectedToNotificationService;
     }
@@ -346,6 +459,7 @@ class RecommendationsManager implements Ranker.RankingListener {
         if (this.mRankerReady && this.mConnectedToNotificationService && this.mClientHandler.getRegisteredClientCount() != 0) {
             this.mStarted = true;
             this.mPackageToRecSet.clear();
+            this.mRanker.clearCachedScores();
             this.mPartnerList.clear();
             notifyServiceStatusChange(clients, partnerClients, true);
             this.mNotificationResolver.fetchExistingNotifications();
@@ -383,8 +497,12 @@ class RecommendationsManager implements Ranker.RankingListener {
         this.mRanker.onActionRecommendationImpression(key, group);
     }
 
-    public void registerNotificationsClient(IRecommendationsClient client, boolean isPartnerClient) {
-        this.mClientHandler.registerNotificationsClient(client, isPartnerClient);
+    public void onActions(String[] keys, String[] groups, int[] actions, long[] times) {
+        this.mRanker.onActions(keys, groups, actions, times);
+    }
+
+    public void registerNotificationsClient(IRecommendationsClient client, boolean isPartnerClient, int version) {
+        this.mClientHandler.registerNotificationsClient(client, isPartnerClient, version);
         this.mClientHandler.enqueueStartIfReady();
     }
 
@@ -496,10 +614,10 @@ class RecommendationsManager implements Ranker.RankingListener {
         HashMap<StatusBarNotification, Double> rawScoreMap = new HashMap();
         HashMap<StatusBarNotification, Double> scoreMap = new HashMap();
         ArrayList<StatusBarNotification> notifications = new ArrayList();
-        for (ArrayList<StatusBarNotification> recSet : this.mPackageToRecSet.values()) {
+        for (ArrayList<RankedRecommendation> recSet : this.mPackageToRecSet.values()) {
             Iterator it = recSet.iterator();
             while (it.hasNext()) {
-                StatusBarNotification sbn = (StatusBarNotification) it.next();
+                StatusBarNotification sbn = ((RankedRecommendation) it.next()).mNotification;
                 notifications.add(sbn);
                 double rawScore = this.mRanker.getBaseNotificationScore(sbn);
                 double score = this.mRanker.getCachedNotificationScore(sbn);
@@ -515,11 +633,34 @@ class RecommendationsManager implements Ranker.RankingListener {
         if (!changed.isEmpty()) {
             int count = clients.beginBroadcast();
             try {
+                TvRecommendation[] recommendations = new TvRecommendation[changed.size()];
+                for (int j = 0; j < recommendations.length; j++) {
+                    RecOperation operation = (RecOperation) changed.get(j);
+                    StatusBarNotification sbn = operation.getNotification();
+                    recommendations[j] = RecommendationsUtil.fromStatusBarNotification(mContext, sbn, this.mRanker.getCachedNotificationScore(sbn));
+                    // clients drop recommendations by key, the image would only be copied for nothing
+                    if (recommendations[j] != null && operation.getOperation() == 2) {
+                        recommendations[j] = recommendations[j].withoutContentImage();
+                    }
+                }
+                TvRecommendation[] sharedRecommendations = null;
                 for (int i = 0; i < count; i++) {
                     try {
                         IRecommendationsClient broadcastItem = clients.getBroadcastItem(i);
-                        for (RecOperation operation : changed) {
-                            TvRecommendation recommendation = RecommendationsUtil.fromStatusBarNotification(mContext, operation.getNotification());
+                        boolean shareImages = canShareImages(clients, i);
+                        if (shareImages && sharedRecommendations == null) {
+                            sharedRecommendations = new TvRecommendation[recommendations.length];
+                            for (int j = 0; j < recommendations.length; j++) {
+                                TvRecommendation recommendation = recommendations[j];
+                                if (recommendation != null) {
+                                    recommendation = recommendation.withSharedContentImage(getSharedImage(((RecOperation) changed.get(j)).getNotification(), recommendation.getContentImage()));
+                                }
+                                sharedRecommendations[j] = recommendation;
+                            }
+                        }
+                        for (int j = 0; j < recommendations.length; j++) {
+                            RecOperation operation = (RecOperation) changed.get(j);
+                            TvRecommendation recommendation = shareImages ? sharedRecommendations[j] : recommendations[j];
                             switch (operation.getOperation()) {
                                 case 0:
                                     broadcastItem.onAddRecommendation(recommendation);
@@ -544,13 +685,25 @@ class RecommendationsManager implements Ranker.RankingListener {
         }
     }
 
+    // Clients registered with API version 3 or later take content images by file descriptor. Those in
+    // this process get the recommendation objects themselves and have no use for a region.
+    private static boolean canShareImages(RemoteCallbackList<IRecommendationsClient> clients, int index) {
+        Object version = clients.getBroadcastCookie(index);
+        return (version instanceof Integer) && ((Integer) version).intValue() >= 3 && !(clients.getBroadcastItem(index).asBinder() instanceof Binder);
+    }
+
     private void recommendationBatchPostedInt(RemoteCallbackList<IRecommendationsClient> clients, RemoteCallbackList<IRecommendationsClient> partnerClients, List<RecOperation> postedBatch) {
         // if (BuildConfig.DEBUG) Log.d(this.mTag, "recommendationBatchPostedInt:\n\tpostedBatch=" + postedBatch + "\n\tmStarted=" + this.mStarted);
         if (this.mStarted) {
+            int partnerOperations = 0;
             List<RecOperation> changes = new ArrayList(postedBatch.size());
-            for (RecOperation operation : postedBatch) {
+            List<RecOperation> coalesced = coalescePostedBatch(postedBatch);
+            for (RecOperation operation : coalesced) {
                 StatusBarNotification sbn = operation.getNotification();
                 boolean inPartnerRow = RecommendationsUtil.isInPartnerRow(this.mContext, sbn);
+                if (inPartnerRow) {
+                    partnerOperations++;
+                }
                 if (operation.getOperation() == 0) {
                     if (inPartnerRow) {
                         handlePartnerRecommendationAdded(partnerClients, sbn);
@@ -561,109 +714,167 @@ class RecommendationsManager implements Ranker.RankingListener {
                     if (inPartnerRow) {
                         handlePartnerRecommendationRemoved(partnerClients, sbn);
                     } else {
-                        ArrayList<StatusBarNotification> recSet = (ArrayList) this.mPackageToRecSet.get(sbn.getPackageName());
-                        if (recSet != null) {
-                            for (int i = 0; i < recSet.size(); i++) {
-                                if (RecommendationsUtil.equals((StatusBarNotification) recSet.get(i), sbn)) {
-                                    recSet.remove(i);
-                                    break;
-                                }
-                            }
+                        ArrayList<RankedRecommendation> recSet = (ArrayList) this.mPackageToRecSet.get(sbn.getPackageName());
+                        int index = recSet != null ? indexOfRecommendation(recSet, sbn) : -1;
+                        if (index != -1) {
+                            recSet.remove(index);
+                            changes.add(RecOperation.newRemove(sbn));
                         }
-                        changes.add(RecOperation.newRemove(sbn));
+                        this.mRanker.removeCachedScore(sbn);
                     }
                 }
             }
-            postRecommendationChangesToClients(clients, changes);
+            List<RecOperation> net = netChanges(changes);
+            postRecommendationChangesToClients(clients, net);
+            synchronized (this.mBatchStatsLock) {
+                this.mBatchCount++;
+                this.mBatchOperationsIn += (long) postedBatch.size();
+                this.mBatchOperationsOut += (long) (net.size() + partnerOperations);
+            }
+            if (BuildConfig.DEBUG) Log.d(this.mTag, "recommendationBatchPostedInt: " + postedBatch.size() + " operations in, " + coalesced.size() + " after coalescing, " + (net.size() + partnerOperations) + " out");
             logRankedAction();
         }
     }
 
+    // Only the last posting or removal of each notification in a batch matters; it keeps the slot
+    // of the first one.
+    private static List<RecOperation> coalescePostedBatch(List<RecOperation> postedBatch) {
+        LinkedHashMap<String, RecOperation> latest = new LinkedHashMap();
+        for (RecOperation operation : postedBatch) {
+            latest.put(operation.getNotification().getKey(), operation);
+        }
+        if (latest.size() == postedBatch.size()) {
+            return postedBatch;
+        }
+        return new ArrayList(latest.values());
+    }
+
+    // Folds the changes for each notification into the one clients need: whether they knew it
+    // before the batch follows from its first change, whether it is still there from its last.
+    private static List<RecOperation> netChanges(List<RecOperation> changes) {
+        LinkedHashMap<String, RecOperation> first = new LinkedHashMap();
+        HashMap<String, RecOperation> last = new HashMap();
+        for (RecOperation operation : changes) {
+            String key = operation.getNotification().getKey();
+            if (!first.containsKey(key)) {
+                first.put(key, operation);
+            }
+            last.put(key, operation);
+        }
+        if (first.size() == changes.size()) {
+            return changes;
+        }
+        List<RecOperation> net = new ArrayList(first.size());
+        for (String key : first.keySet()) {
+            boolean known = ((RecOperation) first.get(key)).getOperation() != 0;
+            RecOperation latest = (RecOperation) last.get(key);
+            if (latest.getOperation() != 2) {
+                net.add(known ? RecOperation.newChange(latest.getNotification()) : RecOperation.newAdd(latest.getNotification()));
+            } else if (known) {
+                net.add(latest);
+            }
+        }
+        return net;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "RecommendationsManager");
+        prefix = prefix + "  ";
+        synchronized (this.mBatchStatsLock) {
+            writer.println(prefix + "batches: " + this.mBatchCount + ", operations in: " + this.mBatchOperationsIn + ", out: " + this.mBatchOperationsOut);
+        }
+        this.mRanker.dump(prefix, writer);
+        writer.println(prefix + "image cache: " + this.mImageCache.size() + "/" + this.mImageCache.maxSize() + " bytes, hits: " + this.mImageCache.hitCount() + ", misses: " + this.mImageCache.missCount() + ", evictions: " + this.mImageCache.evictionCount() + ", shared: " + getSharedImageCount());
+    }
+
     private void tidyRecommendation(StatusBarNotification sbn) {
         removeRemoteViewsIfPresent(sbn);
-        processRecommendationImage(sbn);
+        processRecommendationImage(sbn, null);
     }
 
     private void scoreAndInsertRecommendationAdd(StatusBarNotification sbn, List<RecOperation> changes) {
-        this.mRanker.prepNormalizationValues();
         String pkg = sbn.getPackageName();
         this.mRanker.markPostedRecommendations(pkg);
         if (!this.mRanker.isBlacklisted(pkg)) {
-            ArrayList<StatusBarNotification> recSet = this.mPackageToRecSet.get(pkg);
+            RecSet recSet = (RecSet) this.mPackageToRecSet.get(pkg);
+            RankedRecommendation entry = new RankedRecommendation(sbn);
             if (recSet == null) {
                 tidyRecommendation(sbn);
-                recSet = new ArrayList<>();
-                recSet.add(sbn);
+                recSet = new RecSet();
+                recSet.checkGeneration(this.mRanker, pkg);
+                entry.updateKey(this.mCaptivePortalTracker, this.mRanker);
+                recSet.add(entry);
                 this.mPackageToRecSet.put(pkg, recSet);
-                this.mRanker.calculateAdjustedScore(sbn, 0, RecommendationsUtil.isCaptivePortal(this.mContext, sbn));
+                this.mRanker.calculateAdjustedScore(sbn, 0, entry.mCaptivePortal);
+                entry.mPosition = 0;
                 changes.add(RecOperation.newAdd(sbn));
                 return;
             }
-            StatusBarNotification rec;
-            NotificationComparator comparator = new NotificationComparator(this.mContext, this.mRanker);
-            int wantPosition = -1;
-            boolean found = false;
-            int position = 0;
-            while (position < recSet.size()) {
-                rec = recSet.get(position);
-                if (comparator.compare(rec, sbn) < 0 && wantPosition == -1) {
-                    wantPosition = position;
-                }
-                if (RecommendationsUtil.equals(rec, sbn)) {
-                    found = true;
-                    copyLargeIconAndSize(rec, sbn);
-                    break;
-                }
-                position++;
-            }
-            if (found) {
-                recSet.remove(position);
-                if (wantPosition == -1) {
-                    wantPosition = recSet.size();
-                    while (position < wantPosition) {
-                        if (comparator.compare((StatusBarNotification) recSet.get(position), sbn) < 0) {
-                            wantPosition = position;
-                            break;
-                        }
-                        position++;
-                    }
-                }
-                recSet.add(wantPosition, sbn);
-                if (wantPosition < position) {
-                    wantPosition = position;
+            int oldPosition = indexOfRecommendation(recSet, sbn);
+            if (oldPosition != -1) {
+                StatusBarNotification previous = ((RankedRecommendation) recSet.remove(oldPosition)).mNotification;
+                if (sbn.getNotification().largeIcon != null) {
+                    processRecommendationImage(sbn, previous.getNotification().largeIcon);
                 }
+                copyLargeIconAndSize(previous, sbn);
             } else if (this.mMaxRecsPerApp <= 0 || recSet.size() < this.mMaxRecsPerApp) {
                 tidyRecommendation(sbn);
-                if (wantPosition == -1) {
-                    wantPosition = recSet.size();
-                }
-                this.mRanker.calculateAdjustedScore(sbn, wantPosition, RecommendationsUtil.isCaptivePortal(this.mContext, sbn));
-                recSet.add(wantPosition, sbn);
                 changes.add(RecOperation.newAdd(sbn));
-                wantPosition++;
             } else {
                 this.mNotificationResolver.cancelRecommendation(sbn.getKey());
                 return;
             }
-            boolean haveAdjustedScore = false;
-            double adjustedScore = 0.0d;
-            int recPosition = wantPosition;
-            while (wantPosition < recSet.size()) {
-                rec = (StatusBarNotification) recSet.get(wantPosition);
-                this.mRanker.calculateAdjustedScore(rec, wantPosition, RecommendationsUtil.isCaptivePortal(this.mContext, rec));
-                if (!haveAdjustedScore) {
-                    haveAdjustedScore = true;
-                    adjustedScore = this.mRanker.getCachedNotificationScore(rec);
+            // The binary search needs the set sorted by the keys it compares; they are only taken
+            // again, and the set sorted again, once per change of the package's scores.
+            boolean rescored = recSet.checkGeneration(this.mRanker, pkg);
+            if (rescored) {
+                for (RankedRecommendation rec : recSet) {
+                    rec.updateKey(this.mCaptivePortalTracker, this.mRanker);
                 }
-                changes.add(RecOperation.newChange(sbn));
-                wantPosition++;
+                Collections.sort(recSet, RANKED_ORDER);
             }
-            if (haveAdjustedScore) {
-                //  LoggingUtils.logRecommendationInsertAction(sbn, this.mRanker.getBaseNotificationScore(sbn), adjustedScore, recPosition, this.mContext);
+            entry.updateKey(this.mCaptivePortalTracker, this.mRanker);
+            int position = findInsertPosition(recSet, entry);
+            recSet.add(position, entry);
+            // Clients only hear about the entry itself and the ones whose slot moved. New base
+            // scores alone are cached here and go out with the next change of the entry.
+            for (int i = 0; i < recSet.size(); i++) {
+                RankedRecommendation rec = (RankedRecommendation) recSet.get(i);
+                if (rec == entry || rec.mPosition != i || rescored) {
+                    this.mRanker.calculateAdjustedScore(rec.mNotification, i, rec.mCaptivePortal);
+                    if (rec == entry ? oldPosition != -1 : rec.mPosition != i) {
+                        changes.add(RecOperation.newChange(rec.mNotification));
+                    }
+                    rec.mPosition = i;
+                }
             }
         }
     }
 
+    private static int indexOfRecommendation(ArrayList<RankedRecommendation> recSet, StatusBarNotification sbn) {
+        for (int i = 0; i < recSet.size(); i++) {
+            if (RecommendationsUtil.equals(((RankedRecommendation) recSet.get(i)).mNotification, sbn)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // After the entries ranked at least as high, which keeps postings with equal keys in order.
+    private static int findInsertPosition(ArrayList<RankedRecommendation> recSet, RankedRecommendation entry) {
+        int low = 0;
+        int high = recSet.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (RANKED_ORDER.compare((RankedRecommendation) recSet.get(mid), entry) > 0) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
     private void handlePartnerRecommendationAdded(RemoteCallbackList<IRecommendationsClient> partnerClients, StatusBarNotification sbn) {
         int i;
         int count;
@@ -805,12 +1016,98 @@ class RecommendationsManager implements Ranker.RankingListener {
         // Log.d(this.mTag, "+++ getRecomendationImage for: " + key);
         StatusBarNotification sbn = this.mNotificationResolver.getNotification(key);
         if (sbn != null) {
-            return getResizedRecommendationBitmap(sbn.getNotification().largeIcon, RecommendationsUtil.isInPartnerRow(this.mContext, sbn), false);
+            return getCachedRecommendationBitmap(sbn, sbn.getNotification().largeIcon, RecommendationsUtil.isInPartnerRow(this.mContext, sbn));
         }
         return null;
     }
 
-    private void processRecommendationImage(StatusBarNotification sbn) {
+    public SharedImage getSharedRecommendationImage(String key) {
+        if (this.mNotificationResolver == null) {
+            return null;
+        }
+        StatusBarNotification sbn = this.mNotificationResolver.getNotification(key);
+        if (sbn == null) {
+            return null;
+        }
+        Bitmap bitmap = getCachedRecommendationBitmap(sbn, sbn.getNotification().largeIcon, RecommendationsUtil.isInPartnerRow(this.mContext, sbn));
+        if (Binder.getCallingPid() == Process.myPid()) {
+            // a local call, nothing gets parceled
+            return SharedImage.fromBitmap(bitmap);
+        }
+        SharedImage image = getSharedImage(sbn, bitmap);
+        if (image == null && bitmap != null) {
+            // too large for the cache, or evicted already
+            try {
+                image = SharedImage.createOneShot(bitmap);
+            } catch (IOException e) {
+                Log.e(this.mTag, "Cannot share image of " + key, e);
+            }
+        }
+        return image;
+    }
+
+    // Cached images are shared through one region per posting, made when a client first takes the
+    // image and closed when it leaves mImageCache. Anything else, like the placeholder a card shows
+    // while its image is scaled, goes out inline.
+    private SharedImage getSharedImage(StatusBarNotification sbn, Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+        String key = getImageCacheKey(sbn);
+        synchronized (this.mSharedImages) {
+            if (this.mImageCache.get(key) != bitmap) {
+                return null;
+            }
+            SharedImage image = (SharedImage) this.mSharedImages.get(key);
+            if (image == null) {
+                try {
+                    image = SharedImage.create(bitmap);
+                } catch (IOException e) {
+                    Log.e(this.mTag, "Cannot share image of " + sbn.getKey(), e);
+                    return null;
+                }
+                this.mSharedImages.put(key, image);
+            }
+            return image;
+        }
+    }
+
+    private int getSharedImageCount() {
+        synchronized (this.mSharedImages) {
+            return this.mSharedImages.size();
+        }
+    }
+
+    // Called by mImageCache after the entry is gone, so a region made concurrently for it is either
+    // already in the map or never gets there.
+    private void releaseSharedImage(String key) {
+        SharedImage image;
+        synchronized (this.mSharedImages) {
+            image = (SharedImage) this.mSharedImages.remove(key);
+        }
+        if (image != null) {
+            image.close();
+        }
+    }
+
+    // Scaled images are cached per posting; a repost under the same key may carry a new image.
+    private static String getImageCacheKey(StatusBarNotification sbn) {
+        return sbn.getKey() + "/" + sbn.getPostTime();
+    }
+
+    private Bitmap getCachedRecommendationBitmap(StatusBarNotification sbn, Bitmap image, boolean isBanner) {
+        String key = getImageCacheKey(sbn);
+        Bitmap bitmap = (Bitmap) this.mImageCache.get(key);
+        if (bitmap == null && image != null) {
+            bitmap = getResizedRecommendationBitmap(image, isBanner, false);
+            if (bitmap != null) {
+                this.mImageCache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    private void processRecommendationImage(StatusBarNotification sbn, Bitmap placeholder) {
         if (RecommendationsUtil.isRecommendation(sbn)) {
             // Log.d(this.mTag, "+++ processRecommendationImage for: " + sbn);
             Bitmap img;
@@ -826,7 +1123,7 @@ class RecommendationsManager implements Ranker.RankingListener {
                 return;
             }
             if (partner) {
-                notif.largeIcon = getResizedRecommendationBitmap(img, true, false);
+                notif.largeIcon = getCachedRecommendationBitmap(sbn, img, true);
                 return;
             }
             Point dim = getResizedCardDimensions(img.getWidth(), img.getHeight());
@@ -834,7 +1131,56 @@ class RecommendationsManager implements Ranker.RankingListener {
                 notif.extras.putInt("notif_img_width", dim.x);
                 notif.extras.putInt("notif_img_height", dim.y);
             }
-            notif.largeIcon = getResizedRecommendationBitmap(img, false, false); // why lowres? (true)
+            Bitmap cached = (Bitmap) this.mImageCache.get(getImageCacheKey(sbn));
+            if (cached != null) {
+                notif.largeIcon = cached;
+                return;
+            }
+            if (img.getWidth() <= this.mCardMaxWidth && img.getHeight() <= this.mCardMaxHeight) {
+                notif.largeIcon = img;
+                this.mImageCache.put(getImageCacheKey(sbn), img);
+                return;
+            }
+            // Scaling a large icon takes a while, so the card goes out at its final size with the
+            // previous image, if any, and gets updated once the worker is done. Only the scaled copy
+            // stays referenced afterwards.
+            notif.largeIcon = placeholder;
+            try {
+                this.mImageExecutor.execute(new ResizeImageTask(sbn, img));
+            } catch (RejectedExecutionException e) {
+                notif.largeIcon = getCachedRecommendationBitmap(sbn, img, false);
+            }
+        }
+    }
+
+    private class ResizeImageTask implements Runnable {
+        private final Bitmap mImage;
+        private final StatusBarNotification mNotification;
+
+        ResizeImageTask(StatusBarNotification notification, Bitmap image) {
+            this.mNotification = notification;
+            this.mImage = image;
+        }
+
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Bitmap bitmap = RecommendationsManager.this.getCachedRecommendationBitmap(this.mNotification, this.mImage, false);
+            ClientHandler handler = RecommendationsManager.this.mClientHandler;
+            handler.sendMessage(handler.obtainMessage(6, new ProcessedImage(this.mNotification, bitmap)));
+        }
+    }
+
+    // Only the notification the image was made for gets it; a newer posting has its own icon.
+    private void onRecommendationImageProcessed(RemoteCallbackList<IRecommendationsClient> clients, StatusBarNotification sbn, Bitmap bitmap) {
+        if (this.mStarted) {
+            ArrayList<RankedRecommendation> recSet = (ArrayList) this.mPackageToRecSet.get(sbn.getPackageName());
+            int index = recSet != null ? indexOfRecommendation(recSet, sbn) : -1;
+            if (index != -1 && ((RankedRecommendation) recSet.get(index)).mNotification == sbn && bitmap != null) {
+                sbn.getNotification().largeIcon = bitmap;
+                List<RecOperation> changes = new ArrayList(1);
+                changes.add(RecOperation.newChange(sbn));
+                postRecommendationChangesToClients(clients, changes);
+            }
         }
     }
 
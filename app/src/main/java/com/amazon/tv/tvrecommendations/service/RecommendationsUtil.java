@@ -8,8 +8,6 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
-import android.net.ConnectivityManager;
-import android.net.Network;
 import android.os.Bundle;
 import android.service.notification.StatusBarNotification;
 import android.text.TextUtils;
@@ -34,12 +32,7 @@ public class RecommendationsUtil {
             return true;
         }
         if (TextUtils.equals(tag, "Connectivity.Notification") || (!TextUtils.isEmpty(tag) && tag.startsWith("ConnectivityNotification:"))) {
-            ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService("connectivity");
-            for (Network network : connectivityManager.getAllNetworks()) {
-                if (connectivityManager.getNetworkInfo(network).isConnected() && connectivityManager.getNetworkCapabilities(network).hasCapability(17)) {
-                    return true;
-                }
-            }
+            return CaptivePortalTracker.getInstance(context).isCaptivePortal(sbn);
         }
         return false;
     }
@@ -94,6 +87,10 @@ public class RecommendationsUtil {
     }
 
     static TvRecommendation fromStatusBarNotification(Context context, StatusBarNotification paramStatusBarNotification) {
+        return fromStatusBarNotification(context, paramStatusBarNotification, -1.0d);
+    }
+
+    static TvRecommendation fromStatusBarNotification(Context context, StatusBarNotification paramStatusBarNotification, double score) {
         String packageName = paramStatusBarNotification.getPackageName();
         long l = paramStatusBarNotification.getPostTime();
         Notification notification = paramStatusBarNotification.getNotification();
@@ -147,14 +144,6 @@ public class RecommendationsUtil {
                 progress = bundle.getInt(Notification.EXTRA_PROGRESS);
             }
 
-            double score;
-
-            if (bundle.containsKey("cached_score")) {
-                score = bundle.getDouble("cached_score");
-            } else {
-                score = -1.0D;
-            }
-
             replacePkg = bundle.getString("com.google.android.leanbacklauncher.replacespackage");
             return new TvRecommendation(
                     packageName,
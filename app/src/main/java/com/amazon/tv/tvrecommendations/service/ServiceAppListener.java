@@ -10,6 +10,7 @@ public class ServiceAppListener implements ServiceAppReceiver.Listener {
     private BroadcastReceiver mExternalAppsUpdateReceiver;
     private final Ranker mRanker;
     private final ServiceAppReceiver mServiceAppReceiver = new ServiceAppReceiver(this);
+    private BroadcastReceiver mTimeZoneReceiver;
 
     public ServiceAppListener(Context context, Ranker ranker) {
         this.mContext = context;
@@ -25,34 +26,42 @@ public class ServiceAppListener implements ServiceAppReceiver.Listener {
     }
 
     public void onPackageAdded(String packageName) {
+        this.mRanker.onPackagesChanged();
         this.mRanker.onActionPackageAdded(packageName);
     }
 
     public void onPackageChanged(String packageName) {
+        this.mRanker.onPackagesChanged();
     }
 
     public void onPackageFullyRemoved(String packageName) {
+        this.mRanker.onPackagesChanged();
         this.mRanker.onActionPackageRemoved(packageName);
     }
 
     public void onPackageRemoved(String packageName) {
+        this.mRanker.onPackagesChanged();
         this.mRanker.onActionPackageRemoved(packageName);
     }
 
     public void onPackageReplaced(String packageName) {
+        this.mRanker.onPackagesChanged();
     }
 
     private void registerReceivers() {
         this.mContext.registerReceiver(this.mServiceAppReceiver, ServiceAppReceiver.getIntentFilter());
         registerExternalAppsReceiver();
+        registerTimeZoneReceiver();
     }
 
     private void unregisterReceivers() {
         this.mContext.unregisterReceiver(this.mServiceAppReceiver);
         unregisterExternalAppsReceiver();
+        unregisterTimeZoneReceiver();
     }
 
     private void onExternalPackagesStatusChanged() {
+        this.mRanker.onPackagesChanged();
     }
 
     private void registerExternalAppsReceiver() {
@@ -72,4 +81,19 @@ public class ServiceAppListener implements ServiceAppReceiver.Listener {
             this.mContext.unregisterReceiver(this.mExternalAppsUpdateReceiver);
         }
     }
+
+    private void registerTimeZoneReceiver() {
+        this.mTimeZoneReceiver = new BroadcastReceiver() {
+            public void onReceive(Context context, Intent intent) {
+                DateUtil.invalidateTimeZone();
+            }
+        };
+        this.mContext.registerReceiver(this.mTimeZoneReceiver, new IntentFilter("android.intent.action.TIMEZONE_CHANGED"));
+    }
+
+    private void unregisterTimeZoneReceiver() {
+        if (this.mTimeZoneReceiver != null) {
+            this.mContext.unregisterReceiver(this.mTimeZoneReceiver);
+        }
+    }
 }
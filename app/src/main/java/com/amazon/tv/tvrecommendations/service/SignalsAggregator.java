@@ -2,24 +2,32 @@ package com.amazon.tv.tvrecommendations.service;
 
 import java.util.Date;
 
-class SignalsAggregator implements Aggregator<Signals> {
+class SignalsAggregator implements SignalsDayAggregator {
     private SumAggregator<Integer> mClicks = new SumAggregator();
     private SumAggregator<Integer> mImpressions = new SumAggregator();
 
     SignalsAggregator() {
     }
 
+    static double getCtr(double clicks, double impressions) {
+        if (impressions > 0.0d) {
+            return clicks / impressions;
+        }
+        return 0.0d;
+    }
+
     public void add(Date date, Signals value) {
-        this.mClicks.add(date, Integer.valueOf(value.mClicks));
-        this.mImpressions.add(date, Integer.valueOf(value.mImpressions));
+        this.mClicks.add((double) value.mClicks);
+        this.mImpressions.add((double) value.mImpressions);
+    }
+
+    public void add(int day, int clicks, int impressions) {
+        this.mClicks.add((double) clicks);
+        this.mImpressions.add((double) impressions);
     }
 
     public double getAggregatedScore() {
-        double impressions = this.mImpressions.getAggregatedScore();
-        if (impressions > 0.0d) {
-            return this.mClicks.getAggregatedScore() / impressions;
-        }
-        return 0.0d;
+        return getCtr(this.mClicks.getAggregatedScore(), this.mImpressions.getAggregatedScore());
     }
 
     public void reset() {
@@ -0,0 +1,5 @@
+package com.amazon.tv.tvrecommendations.service;
+
+public interface SignalsDayAggregator extends Aggregator<Signals> {
+    void add(int day, int clicks, int impressions);
+}
@@ -18,6 +18,10 @@ class SumAggregator<T> implements Aggregator<T> {
         }
     }
 
+    public void add(double value) {
+        this.mSum += value;
+    }
+
     public double getAggregatedScore() {
         return this.mSum;
     }
@@ -0,0 +1,144 @@
+package com.amazon.tv.firetv.leanbacklauncher.util;
+
+import com.amazon.tv.firetv.leanbacklauncher.apps.AppCategory;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// The built-in rules against the keyword loops AppCategorizer and BannerUtil used to run, over a
+// corpus of package names. benchmark() times both on it, only with -Dpackage.rules.benchmark=true.
+public class PackageRulesTest {
+    private static final int TIMING_ROUNDS = 20;
+    private static final int TIMING_RUNS = 200;
+
+    private List<String> mPackages;
+
+    @Before
+    public void setUp() throws IOException {
+        this.mPackages = readPackages("package_names.txt");
+    }
+
+    @Test
+    public void builtinRulesMatchKeywordLoops() {
+        PackageRules rules = PackageRules.getCurrent();
+        int categorized = 0;
+        int banners = 0;
+        for (String pkgName : this.mPackages) {
+            AppCategory category = getCategoryByLoops(pkgName);
+            assertEquals(pkgName, category, rules.getCategory(pkgName));
+            Integer banner = rules.getBannerOverride(pkgName);
+            String keyword = getBannerKeywordByLoops(pkgName);
+            if (keyword == null) {
+                assertEquals(pkgName, null, banner);
+            } else {
+                // equally long keywords would both be right, the corpus has none
+                assertEquals(pkgName, BannerUtil.BANNER_OVERRIDES.get(keyword), banner);
+            }
+            categorized += category != null ? 1 : 0;
+            banners += banner != null ? 1 : 0;
+        }
+        assertTrue(categorized > 0);
+        assertTrue(banners > 0);
+    }
+
+    @Test
+    public void keywordsOutsideAlphabet() {
+        assertTrue(PackageMatcher.isMatchable("tv.plex", false));
+        assertTrue(PackageMatcher.isMatchable("Plex_2", true));
+        assertFalse(PackageMatcher.isMatchable("Plex", false));
+        assertFalse(PackageMatcher.isMatchable("plex-tv", true));
+        assertFalse(PackageMatcher.isMatchable("plex tv", true));
+        assertFalse(PackageMatcher.isMatchable("", true));
+    }
+
+    @Test
+    public void benchmark() {
+        Assume.assumeTrue(Boolean.getBoolean("package.rules.benchmark"));
+        PackageRules rules = PackageRules.getCurrent();
+        int sink = 0;
+        long loopsBest = Long.MAX_VALUE;
+        long automatonBest = Long.MAX_VALUE;
+        for (int round = 0; round < TIMING_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int run = 0; run < TIMING_RUNS; run++) {
+                for (String pkgName : this.mPackages) {
+                    AppCategory category = getCategoryByLoops(pkgName);
+                    String keyword = getBannerKeywordByLoops(pkgName);
+                    sink += (category != null ? category.code : 0) + (keyword != null ? keyword.length() : 0);
+                }
+            }
+            loopsBest = Math.min(loopsBest, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int run = 0; run < TIMING_RUNS; run++) {
+                for (String pkgName : this.mPackages) {
+                    AppCategory category = rules.getCategory(pkgName);
+                    Integer banner = rules.getBannerOverride(pkgName);
+                    sink += (category != null ? category.code : 0) + (banner != null ? 1 : 0);
+                }
+            }
+            automatonBest = Math.min(automatonBest, System.nanoTime() - start);
+        }
+        System.out.println(String.format(Locale.US, "%d packages: loops %.1f us, automaton %.1f us", this.mPackages.size(), ((double) loopsBest) / 1000.0d / TIMING_RUNS, ((double) automatonBest) / 1000.0d / TIMING_RUNS));
+        assertTrue(sink != 0);
+    }
+
+    private static AppCategory getCategoryByLoops(String pkgName) {
+        for (String s : AppCategorizer.MUSIC_FILTER) {
+            if (pkgName.contains(s)) {
+                return AppCategory.MUSIC;
+            }
+        }
+        for (String s : AppCategorizer.VIDEO_FILTER) {
+            if (pkgName.contains(s)) {
+                return AppCategory.VIDEO;
+            }
+        }
+        return null;
+    }
+
+    private static String getBannerKeywordByLoops(String pkgName) {
+        String lowerName = pkgName.toLowerCase();
+        String longest = null;
+        for (Map.Entry<String, Integer> entry : BannerUtil.BANNER_OVERRIDES.entrySet()) {
+            String keyword = (String) entry.getKey();
+            if (lowerName.contains(keyword) && (longest == null || keyword.length() > longest.length())) {
+                longest = keyword;
+            }
+        }
+        return longest;
+    }
+
+    private static List<String> readPackages(String resource) throws IOException {
+        InputStream in = PackageRulesTest.class.getClassLoader().getResourceAsStream(resource);
+        assertNotNull(resource, in);
+        List<String> packages = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    packages.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return packages;
+    }
+}
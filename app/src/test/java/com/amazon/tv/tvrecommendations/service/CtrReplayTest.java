@@ -0,0 +1,334 @@
+package com.amazon.tv.tvrecommendations.service;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Offline comparison of the plain and the time-decayed CTR. Every bucket is scored from the days
+// before an evaluation day and the scores are checked against what the bucket actually got on that
+// day. On a generated data set with drifting rates the decayed CTR has to come out ahead; replay()
+// runs the same comparison on recorded signals, timed the way the ranker publishes, one read after
+// every day added, and only when ctr.replay.csv points at an export of a device's ranking database,
+//   sqlite3 -csv -header recommendations.db "SELECT _id, key, group_id, day, mClicks, mImpressions FROM buffer_scores"
+//   ./gradlew test --tests '*CtrReplayTest' -Dctr.replay.csv=<file>
+public class CtrReplayTest {
+    private static final int BUFFER_DAYS = 14;
+    private static final int EVALUATION_DAYS = 7;
+    private static final double[] HALF_LIVES = new double[]{14.0d, 7.0d, 3.0d, 1.0d};
+    private static final int TIMING_RUNS = 20;
+
+    private float mDecayEnabled;
+    private float mHalfLifeDays = 7.0f;
+
+    private static class Row {
+        final int clicks;
+        final int day;
+        final String group;
+        final int impressions;
+        final String key;
+
+        Row(String key, String group, int day, int clicks, int impressions) {
+            this.key = key;
+            this.group = group;
+            this.day = day;
+            this.clicks = clicks;
+            this.impressions = impressions;
+        }
+    }
+
+    private static class Result {
+        double concordant;
+        double pairs;
+        double squaredError;
+        double weight;
+
+        double getConcordance() {
+            return this.pairs > 0.0d ? this.concordant / this.pairs : 0.5d;
+        }
+
+        double getError() {
+            return this.weight > 0.0d ? Math.sqrt(this.squaredError / this.weight) : 0.0d;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Ranker.sRankerParameters = new RankerParameters() {
+            protected float getFloat(String name, float defaultValue) {
+                if ("rec_ranker_ctr_decay_enabled".equals(name)) {
+                    return CtrReplayTest.this.mDecayEnabled;
+                }
+                if ("rec_ranker_ctr_half_life_days".equals(name)) {
+                    return CtrReplayTest.this.mHalfLifeDays;
+                }
+                return defaultValue;
+            }
+
+            protected Object getVersionToken() {
+                return CtrReplayTest.this.mDecayEnabled + "/" + CtrReplayTest.this.mHalfLifeDays;
+            }
+        };
+    }
+
+    @Test
+    public void decayedScoresMatchTheirDays() {
+        this.mDecayEnabled = 1.0f;
+        Random random = new Random(3);
+        DecayedSignalsAggregator aggregator = new DecayedSignalsAggregator();
+        List<Row> rows = generate(random);
+        sortByDay(rows);
+        HashMap<String, ActiveDayBuffer> buffers = new HashMap<>();
+        int checked = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = (Row) rows.get(i);
+            if (i == rows.size() / 2) {
+                // a new half-life walks the days again
+                this.mHalfLifeDays = 3.0f;
+            }
+            String bucket = row.key + "/" + row.group;
+            ActiveDayBuffer buffer = (ActiveDayBuffer) buffers.get(bucket);
+            if (buffer == null) {
+                buffer = new ActiveDayBuffer(BUFFER_DAYS);
+                buffers.put(bucket, buffer);
+            }
+            buffer.add(row.day, row.clicks, row.impressions);
+            aggregator.reset();
+            for (int index = 0; index < buffer.size(); index++) {
+                aggregator.add(buffer.getDayAt(index), buffer.getClicksAt(index), buffer.getImpressionsAt(index));
+            }
+            assertEquals(bucket + " on day " + row.day, aggregator.getAggregatedScore(), buffer.getAggregatedScore(aggregator), 1.0E-9d);
+            checked++;
+        }
+        assertTrue(checked > 0);
+    }
+
+    @Test
+    public void decayFollowsDriftingRates() {
+        List<Row> rows = generate(new Random(7));
+        sortByDay(rows);
+        List<Integer> evaluationDays = getEvaluationDays(rows);
+        this.mDecayEnabled = 0.0f;
+        Result plain = evaluate(rows, evaluationDays, new SignalsAggregator());
+        this.mDecayEnabled = 1.0f;
+        this.mHalfLifeDays = 3.0f;
+        Result decayed = evaluate(rows, evaluationDays, new DecayedSignalsAggregator());
+        assertTrue("plain concordance " + plain.getConcordance(), plain.getConcordance() > 0.5d);
+        assertTrue("decayed concordance " + decayed.getConcordance() + " <= " + plain.getConcordance(), decayed.getConcordance() > plain.getConcordance());
+        assertTrue("decayed error " + decayed.getError() + " >= " + plain.getError(), decayed.getError() < plain.getError());
+    }
+
+    @Test
+    public void replay() throws IOException {
+        String path = System.getProperty("ctr.replay.csv");
+        Assume.assumeTrue(path != null);
+        List<Row> rows = readCsv(path);
+        sortByDay(rows);
+        List<Integer> evaluationDays = getEvaluationDays(rows);
+        assertTrue(path + " has less than two days", evaluationDays.size() > 0);
+
+        System.out.println(String.format(Locale.US, "%s: %d rows, evaluated on the last %d days", path, rows.size(), evaluationDays.size()));
+        System.out.println(String.format(Locale.US, "%-16s %12s %12s %12s", "aggregator", "concordance", "rmse", "cpu us/run"));
+        this.mDecayEnabled = 0.0f;
+        report("plain", evaluate(rows, evaluationDays, new SignalsAggregator()), time(rows, new SignalsAggregator()));
+        this.mDecayEnabled = 1.0f;
+        for (double halfLife : HALF_LIVES) {
+            this.mHalfLifeDays = (float) halfLife;
+            report("decayed " + halfLife + "d", evaluate(rows, evaluationDays, new DecayedSignalsAggregator()), time(rows, new DecayedSignalsAggregator()));
+        }
+    }
+
+    private static void report(String name, Result result, long cpuNanos) {
+        System.out.println(String.format(Locale.US, "%-16s %12.4f %12.4f %12.1f", name, result.getConcordance(), result.getError(), ((double) cpuNanos) / 1000.0d / TIMING_RUNS));
+    }
+
+    private static void sortByDay(List<Row> rows) {
+        Collections.sort(rows, new Comparator<Row>() {
+            public int compare(Row a, Row b) {
+                return Integer.compare(a.day, b.day);
+            }
+        });
+    }
+
+    // the most recent days, all but the first, which has nothing before it to score from
+    private static List<Integer> getEvaluationDays(List<Row> rows) {
+        TreeSet<Integer> days = new TreeSet<>();
+        for (Row row : rows) {
+            days.add(row.day);
+        }
+        List<Integer> evaluationDays = new ArrayList<>(days.descendingSet());
+        return evaluationDays.subList(0, Math.min(EVALUATION_DAYS, Math.max(0, evaluationDays.size() - 1)));
+    }
+
+    private static Result evaluate(List<Row> rows, List<Integer> evaluationDays, Aggregator<Signals> aggregator) {
+        Result result = new Result();
+        for (int day : evaluationDays) {
+            // scores from the days before, outcomes from the day itself
+            HashMap<String, ActiveDayBuffer> buffers = new HashMap<>();
+            HashMap<String, int[]> outcomes = new HashMap<>();
+            for (Row row : rows) {
+                String bucket = row.key + "/" + row.group;
+                if (row.day < day && row.day >= day - BUFFER_DAYS) {
+                    ActiveDayBuffer buffer = (ActiveDayBuffer) buffers.get(bucket);
+                    if (buffer == null) {
+                        buffer = new ActiveDayBuffer(BUFFER_DAYS);
+                        buffers.put(bucket, buffer);
+                    }
+                    buffer.add(row.day, row.clicks, row.impressions);
+                } else if (row.day == day && row.impressions > 0) {
+                    outcomes.put(bucket, new int[]{row.clicks, row.impressions});
+                }
+            }
+            List<double[]> scored = new ArrayList<>();
+            for (String bucket : outcomes.keySet()) {
+                ActiveDayBuffer buffer = (ActiveDayBuffer) buffers.get(bucket);
+                if (buffer != null && buffer.hasData()) {
+                    int[] outcome = (int[]) outcomes.get(bucket);
+                    double actual = SignalsAggregator.getCtr((double) outcome[0], (double) outcome[1]);
+                    double predicted = buffer.getAggregatedScore(aggregator);
+                    scored.add(new double[]{predicted, actual});
+                    result.squaredError += ((double) outcome[1]) * (predicted - actual) * (predicted - actual);
+                    result.weight += (double) outcome[1];
+                }
+            }
+            for (int i = 0; i < scored.size(); i++) {
+                for (int j = i + 1; j < scored.size(); j++) {
+                    double[] a = (double[]) scored.get(i);
+                    double[] b = (double[]) scored.get(j);
+                    if (a[1] != b[1]) {
+                        result.pairs += 1.0d;
+                        if (a[0] == b[0]) {
+                            result.concordant += 0.5d;
+                        } else if ((a[0] > b[0]) == (a[1] > b[1])) {
+                            result.concordant += 1.0d;
+                        }
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static long time(List<Row> rows, Aggregator<Signals> aggregator) {
+        long cpuNanos = 0;
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        double sink = 0.0d;
+        for (int run = -1; run < TIMING_RUNS; run++) {
+            // the first run only warms up
+            long start = bean.getCurrentThreadCpuTime();
+            HashMap<String, ActiveDayBuffer> buffers = new HashMap<>();
+            for (Row row : rows) {
+                String bucket = row.key + "/" + row.group;
+                ActiveDayBuffer buffer = (ActiveDayBuffer) buffers.get(bucket);
+                if (buffer == null) {
+                    buffer = new ActiveDayBuffer(BUFFER_DAYS);
+                    buffers.put(bucket, buffer);
+                }
+                buffer.add(row.day, row.clicks, row.impressions);
+                sink += buffer.getAggregatedScore(aggregator);
+            }
+            if (run >= 0) {
+                cpuNanos += bean.getCurrentThreadCpuTime() - start;
+            }
+        }
+        assertTrue(!Double.isNaN(sink));
+        return cpuNanos;
+    }
+
+    private static List<Row> readCsv(String path) throws IOException {
+        List<Row> rows = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (line != null && !line.startsWith("_id")) {
+                throw new IOException("Expected the header _id,key,group_id,day,mClicks,mImpressions, got " + line);
+            }
+            while ((line = reader.readLine()) != null) {
+                List<String> fields = splitCsv(line);
+                if (fields.size() != 6) {
+                    throw new IOException("Expected 6 fields: " + line);
+                }
+                rows.add(new Row((String) fields.get(1), (String) fields.get(2), Integer.parseInt((String) fields.get(3)), parseCount((String) fields.get(4)), parseCount((String) fields.get(5))));
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    // sqlite3 quotes fields holding commas or quotes, and leaves NULL empty
+    private static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static int parseCount(String value) {
+        return value.length() == 0 ? 0 : Integer.parseInt(value);
+    }
+
+    // Buckets whose click rate wanders from day to day, so older days say less about tomorrow.
+    private static List<Row> generate(Random random) {
+        List<Row> rows = new ArrayList<>();
+        int firstDay = DateUtil.getDay(System.currentTimeMillis()) - 60;
+        for (int k = 0; k < 40; k++) {
+            for (int g = 0; g < 4; g++) {
+                double rate = random.nextDouble() * 0.3d;
+                for (int day = firstDay; day < firstDay + 60; day++) {
+                    rate = Math.max(0.0d, Math.min(1.0d, rate + (random.nextGaussian() * 0.03d)));
+                    if (random.nextInt(3) != 0) {
+                        int impressions = random.nextInt(40) + 1;
+                        int clicks = 0;
+                        for (int i = 0; i < impressions; i++) {
+                            if (random.nextDouble() < rate) {
+                                clicks++;
+                            }
+                        }
+                        rows.add(new Row("com.example.app" + k, "group" + g, day, clicks, impressions));
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+}
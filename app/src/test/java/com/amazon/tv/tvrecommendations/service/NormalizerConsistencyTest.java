@@ -0,0 +1,165 @@
+package com.amazon.tv.tvrecommendations.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Random actions against a few entities sharing one normalizer. After every step the sums kept
+// incrementally by ActiveDayBuffer, Bucket and Normalizer have to match a recompute from the raw
+// day slots.
+public class NormalizerConsistencyTest {
+    private static final long START = 1500000000000L;
+    private static final int ENTITIES = 6;
+    private static final int GROUPS = 130;
+    private static final int STEPS = 5000;
+    private static final double TOLERANCE = 1.0E-9d;
+
+    private float mDecayEnabled;
+    private float mHalfLifeDays = 7.0f;
+
+    @Before
+    public void setUp() {
+        Ranker.sRankerParameters = new RankerParameters() {
+            protected float getFloat(String name, float defaultValue) {
+                if ("rec_ranker_ctr_decay_enabled".equals(name)) {
+                    return NormalizerConsistencyTest.this.mDecayEnabled;
+                }
+                if ("rec_ranker_ctr_half_life_days".equals(name)) {
+                    return NormalizerConsistencyTest.this.mHalfLifeDays;
+                }
+                return defaultValue;
+            }
+
+            protected Object getVersionToken() {
+                return NormalizerConsistencyTest.this.mDecayEnabled + "/" + NormalizerConsistencyTest.this.mHalfLifeDays;
+            }
+        };
+    }
+
+    @Test
+    public void plainCtr() {
+        this.mDecayEnabled = 0.0f;
+        run(new Random(1));
+    }
+
+    @Test
+    public void decayedCtr() {
+        this.mDecayEnabled = 1.0f;
+        run(new Random(2));
+    }
+
+    @Test
+    public void decayedCtrShortHalfLife() {
+        this.mDecayEnabled = 1.0f;
+        this.mHalfLifeDays = 0.5f;
+        run(new Random(3));
+    }
+
+    private void run(Random random) {
+        DbHelper helper = new TestDbHelper();
+        Normalizer normalizer = new Normalizer();
+        List<Entity> entities = new ArrayList<>();
+        boolean[] attached = new boolean[ENTITIES];
+        for (int i = 0; i < ENTITIES; i++) {
+            Entity entity = new Entity(null, helper, "pkg" + i);
+            entity.attachNormalizer(normalizer);
+            entities.add(entity);
+            attached[i] = true;
+        }
+        for (int step = 0; step < STEPS; step++) {
+            int index = random.nextInt(ENTITIES);
+            Entity entity = (Entity) entities.get(index);
+            String group = "group" + random.nextInt(GROUPS);
+            long time = START + (((long) random.nextInt(40)) * DateUtil.DAY_MS) + ((long) random.nextInt((int) DateUtil.DAY_MS));
+            int op = random.nextInt(1000);
+            if (op < 600) {
+                entity.onAction(4, null, group, time);
+            } else if (op < 900) {
+                // a click follows an impression of the same day, which keeps rates at or below 1
+                ActiveDayBuffer buffer = entity.getSignalsBuffer(group);
+                Signals signals = buffer != null ? buffer.get(DateUtil.getDay(time)) : null;
+                entity.onAction(signals != null && signals.mClicks < signals.mImpressions ? 2 : 4, null, group, time);
+            } else if (op < 980) {
+                entity.addBucket(group, time);
+            } else if (op < 990) {
+                entity.onAction(3, null, null, time);
+            } else if (op < 995) {
+                // attaching to the normalizer it is already in must not count it twice
+                entity.attachNormalizer(normalizer);
+                attached[index] = true;
+            } else if (attached[index]) {
+                entity.detachNormalizer();
+                attached[index] = false;
+            } else {
+                entity.attachNormalizer(normalizer);
+                attached[index] = true;
+            }
+            assertConsistent(normalizer, entities, attached, step);
+        }
+    }
+
+    private void assertConsistent(Normalizer normalizer, List<Entity> entities, boolean[] attached, int step) {
+        boolean decay = Ranker.isCtrDecayEnabled();
+        double expectedSum = 0.0d;
+        for (int i = 0; i < entities.size(); i++) {
+            Entity entity = (Entity) entities.get(i);
+            for (String group : entity.getGroupIds()) {
+                Bucket bucket = entity.getBucket(group);
+                ActiveDayBuffer buffer = bucket.getBuffer();
+                double score = recompute(buffer, decay);
+                if (buffer.hasData()) {
+                    Aggregator<Signals> aggregator = decay ? new DecayedSignalsAggregator() : new SignalsAggregator();
+                    assertEquals("step " + step + ": score of " + entity.getKey() + "/" + group, score, buffer.getAggregatedScore(aggregator), TOLERANCE);
+                }
+                if (attached[i]) {
+                    assertEquals("step " + step + ": published score of " + entity.getKey() + "/" + group, score, bucket.getPublishedScore(), TOLERANCE);
+                    expectedSum += score;
+                }
+            }
+        }
+        assertEquals("step " + step + ": normalizer sum", expectedSum, normalizer.getSum(), TOLERANCE * Math.max(1.0d, expectedSum));
+    }
+
+    // The score of a buffer from its day slots alone, oldest day first; empty buffers publish 0.
+    private static double recompute(ActiveDayBuffer buffer, boolean decay) {
+        if (!buffer.hasData()) {
+            return 0.0d;
+        }
+        List<int[]> days = new ArrayList<>();
+        int clickSum = 0;
+        int impressionSum = 0;
+        for (int slot = 0; slot < buffer.size(); slot++) {
+            int day = buffer.getDayAt(slot);
+            if (day != -1) {
+                days.add(new int[]{day, buffer.getClicksAt(slot), buffer.getImpressionsAt(slot)});
+                clickSum += buffer.getClicksAt(slot);
+                impressionSum += buffer.getImpressionsAt(slot);
+            }
+        }
+        assertEquals(clickSum, buffer.getClickSum());
+        assertEquals(impressionSum, buffer.getImpressionSum());
+        int[][] sorted = (int[][]) days.toArray(new int[days.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+        for (int i = 1; i < sorted.length; i++) {
+            assertTrue("days out of order", sorted[i - 1][0] < sorted[i][0]);
+        }
+        SignalsDayAggregator aggregator = decay ? new DecayedSignalsAggregator() : new SignalsAggregator();
+        aggregator.reset();
+        for (int[] day : sorted) {
+            aggregator.add(day[0], day[1], day[2]);
+        }
+        return aggregator.getAggregatedScore();
+    }
+}
@@ -0,0 +1,286 @@
+package com.amazon.tv.tvrecommendations.service;
+
+import android.app.Notification;
+import android.content.ContextWrapper;
+import android.service.notification.StatusBarNotification;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Actions and score queries from several threads while the ranker goes through its start: actions
+// queue until the database's entities are in, some of them race with the snapshot image and the
+// replay, the rest arrive afterwards. Every action has to end up in exactly one bucket, and the
+// normalizer has to hold the sum of what the entities published.
+public class RankerStressTest {
+    private static final int ACTION_THREADS = 4;
+    private static final int ACTIONS_PER_THREAD = 4000;
+    private static final int CHANGE_EVERY_FEW_MS = 1;
+    private static final int CHANGE_ONCE = 2;
+    private static final int GROUPS = 8;
+    private static final int NEW_PACKAGE_ROUNDS = 5;
+    private static final int NEW_PACKAGES = 5000;
+    private static final int NO_CHANGES = 0;
+    private static final int PACKAGES = 12;
+    private static final int PRELOADED_PACKAGES = 6;
+    private static final int ROUNDS = 10;
+    private static final int SCORE_THREADS = 2;
+
+    private volatile float mDecayEnabled;
+    private volatile float mHalfLifeDays = 7.0f;
+
+    private static class TestRanker extends Ranker {
+        TestRanker(DbHelper dbHelper, RankerParameters rankerParameters) {
+            super(new ContextWrapper(null), dbHelper, rankerParameters);
+        }
+
+        void applyInitialRanking() {
+        }
+    }
+
+    private static class TestNotification extends StatusBarNotification {
+        private final String mKey;
+        private final Notification mNotification = new Notification();
+        private final String mPackageName;
+
+        TestNotification(String packageName, int id) {
+            super(packageName, packageName, id, null, 0, 0, 0, null, null, 0);
+            this.mPackageName = packageName;
+            this.mKey = packageName + "|" + id;
+        }
+
+        public String getPackageName() {
+            return this.mPackageName;
+        }
+
+        public String getKey() {
+            return this.mKey;
+        }
+
+        public Notification getNotification() {
+            return this.mNotification;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Ranker.sRankerParameters = new RankerParameters() {
+            protected float getFloat(String name, float defaultValue) {
+                if ("rec_ranker_ctr_decay_enabled".equals(name)) {
+                    return RankerStressTest.this.mDecayEnabled;
+                }
+                if ("rec_ranker_ctr_half_life_days".equals(name)) {
+                    return RankerStressTest.this.mHalfLifeDays;
+                }
+                return defaultValue;
+            }
+
+            protected Object getVersionToken() {
+                return RankerStressTest.this.mDecayEnabled + "/" + RankerStressTest.this.mHalfLifeDays;
+            }
+        };
+    }
+
+    @Test
+    public void actionsDuringLoad() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            runRound(new Random(round), NO_CHANGES, PACKAGES);
+        }
+    }
+
+    // The CTR flags flip while actions come in; the ranker has to republish every bucket with the
+    // aggregator in effect once it notices.
+    @Test
+    public void ctrParametersChangeDuringActions() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            runRound(new Random(ROUNDS + round), CHANGE_EVERY_FEW_MS, PACKAGES);
+        }
+    }
+
+    // One change, republished while most actions go to packages the ranker hasn't seen yet, so
+    // entities are created during the walk. Any later republish would hide a miscount.
+    @Test
+    public void newPackagesWhileCtrParametersChange() throws Exception {
+        for (int round = 0; round < NEW_PACKAGE_ROUNDS; round++) {
+            runRound(new Random((ROUNDS * 2) + round), CHANGE_ONCE, NEW_PACKAGES);
+        }
+    }
+
+    private void runRound(Random random, int ctrChanges, final int packages) throws Exception {
+        final DbHelper helper = new TestDbHelper();
+        final Ranker ranker = new TestRanker(helper, Ranker.sRankerParameters);
+        final int[][][] preloaded = new int[packages][GROUPS][2];
+        for (int p = 0; p < PRELOADED_PACKAGES; p++) {
+            for (int g = 0; g < GROUPS; g++) {
+                preloaded[p][g][1] = random.nextInt(50);
+                preloaded[p][g][0] = random.nextInt(preloaded[p][g][1] + 1);
+            }
+        }
+
+        final int[][][][] submitted = new int[ACTION_THREADS][packages][GROUPS][2];
+        final CountDownLatch started = new CountDownLatch(ACTION_THREADS);
+        final CountDownLatch halfway = new CountDownLatch(ACTION_THREADS);
+        final CountDownLatch loaded = new CountDownLatch(ctrChanges != NO_CHANGES ? 1 : 0);
+        final CountDownLatch threeQuarters = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < ACTION_THREADS; t++) {
+            final int thread = t;
+            final long seed = random.nextLong();
+            threads.add(new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    int[][][] counts = submitted[thread];
+                    started.countDown();
+                    for (int i = 0; i < ACTIONS_PER_THREAD; i++) {
+                        if (thread == 0 && i == (ACTIONS_PER_THREAD * 3) / 4) {
+                            threeQuarters.countDown();
+                        }
+                        if (i == ACTIONS_PER_THREAD / 2) {
+                            halfway.countDown();
+                            // with parameter changes, the second half runs against the loaded ranker
+                            try {
+                                loaded.await();
+                            } catch (InterruptedException e) {
+                                failure.compareAndSet(null, e);
+                                return;
+                            }
+                        }
+                        int p = random.nextInt(packages);
+                        int g = random.nextInt(GROUPS);
+                        if (random.nextInt(4) == 0) {
+                            ranker.onActionOpenRecommendation(packageName(p), groupName(g));
+                            counts[p][g][0]++;
+                        } else {
+                            ranker.onActionRecommendationImpression(packageName(p), groupName(g));
+                            counts[p][g][1]++;
+                        }
+                    }
+                }
+            });
+        }
+        for (int t = 0; t < SCORE_THREADS; t++) {
+            final long seed = random.nextLong();
+            threads.add(new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    StatusBarNotification[] notifications = new StatusBarNotification[PACKAGES];
+                    for (int p = 0; p < PACKAGES; p++) {
+                        notifications[p] = new TestNotification(packageName(p), p);
+                    }
+                    try {
+                        while (!done.get()) {
+                            StatusBarNotification sbn = notifications[random.nextInt(PACKAGES)];
+                            double score = ranker.getBaseNotificationScore(sbn);
+                            assertTrue("score " + score, score == -100.0d || (score > -1.0d && score < 1.0d));
+                            ranker.calculateAdjustedScore(sbn, random.nextInt(5), false);
+                            assertTrue(!Double.isNaN(ranker.getCachedNotificationScore(sbn)));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // the snapshot image shows up while the first actions queue, the database halfway through
+        started.await();
+        ranker.onTopEntitiesLoaded(createEntities(helper, preloaded), Collections.<String>emptyList());
+        halfway.await();
+        ranker.onEntitiesLoaded(createEntities(helper, preloaded), Collections.<String>emptyList());
+        loaded.countDown();
+        if (ctrChanges == CHANGE_EVERY_FEW_MS) {
+            while (((Thread) threads.get(0)).isAlive()) {
+                this.mDecayEnabled = random.nextBoolean() ? 1.0f : 0.0f;
+                this.mHalfLifeDays = random.nextBoolean() ? 7.0f : 0.5f;
+                Thread.sleep(1);
+            }
+        } else if (ctrChanges == CHANGE_ONCE) {
+            threeQuarters.await();
+            this.mDecayEnabled = this.mDecayEnabled != 0.0f ? 0.0f : 1.0f;
+            ranker.getBaseNotificationScore(new TestNotification(packageName(0), 0));
+        }
+
+        for (int t = 0; t < ACTION_THREADS; t++) {
+            ((Thread) threads.get(t)).join();
+        }
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        if (ctrChanges == CHANGE_EVERY_FEW_MS) {
+            // once more with no action after it, the next score query has to catch it
+            this.mDecayEnabled = this.mDecayEnabled != 0.0f ? 0.0f : 1.0f;
+            ranker.getBaseNotificationScore(new TestNotification(packageName(0), 0));
+        }
+
+        double expectedSum = 0.0d;
+        Aggregator<Signals> aggregator = Ranker.isCtrDecayEnabled() ? new DecayedSignalsAggregator() : new SignalsAggregator();
+        for (int p = 0; p < packages; p++) {
+            Entity entity = ranker.getEntity(packageName(p));
+            for (int g = 0; g < GROUPS; g++) {
+                int clicks = preloaded[p][g][0];
+                int impressions = preloaded[p][g][1];
+                for (int t = 0; t < ACTION_THREADS; t++) {
+                    clicks += submitted[t][p][g][0];
+                    impressions += submitted[t][p][g][1];
+                }
+                if (clicks + impressions == 0) {
+                    continue;
+                }
+                assertNotNull(packageName(p), entity);
+                Bucket bucket = entity.getBucket(groupName(g));
+                assertNotNull(packageName(p) + "/" + groupName(g), bucket);
+                ActiveDayBuffer buffer = bucket.getBuffer();
+                assertEquals(packageName(p) + "/" + groupName(g) + " clicks", clicks, buffer.getClickSum());
+                assertEquals(packageName(p) + "/" + groupName(g) + " impressions", impressions, buffer.getImpressionSum());
+                double score = buffer.getAggregatedScore(aggregator);
+                assertEquals(score, bucket.getPublishedScore(), 1.0E-12d);
+                expectedSum += score;
+            }
+        }
+        assertEquals(expectedSum, ranker.getCtrNormalizer().getSum(), 1.0E-9d * Math.max(1.0d, expectedSum));
+    }
+
+    // What the database would hand over: the same stored signals, in new entity objects every time.
+    private static HashMap<String, Entity> createEntities(DbHelper helper, int[][][] preloaded) {
+        HashMap<String, Entity> entities = new HashMap<>();
+        int day = DateUtil.getDay(System.currentTimeMillis()) - 1;
+        for (int p = 0; p < PRELOADED_PACKAGES; p++) {
+            Entity entity = new Entity(null, helper, packageName(p), 0, true);
+            for (int g = 0; g < GROUPS; g++) {
+                Bucket bucket = entity.addBucket(groupName(g), System.currentTimeMillis());
+                bucket.getBuffer().set(day, new Signals(preloaded[p][g][0], preloaded[p][g][1]));
+            }
+            entity.clearDirty();
+            entities.put(packageName(p), entity);
+        }
+        return entities;
+    }
+
+    private static String packageName(int p) {
+        return "com.example.app" + p;
+    }
+
+    private static String groupName(int g) {
+        return "group" + g;
+    }
+}
@@ -0,0 +1,31 @@
+package com.amazon.tv.tvrecommendations.service;
+
+import android.content.ContextWrapper;
+
+import java.util.List;
+
+// A DbHelper that stores and loads nothing, for tests of the in-memory ranking state. Tests hand
+// entities to the listener themselves.
+class TestDbHelper extends DbHelper {
+    TestDbHelper() {
+        super(new ContextWrapper(null), "test.db", false);
+    }
+
+    public void saveEntity(Entity entity) {
+    }
+
+    public void removeEntity(String key, boolean fullRemoval) {
+    }
+
+    public void removeGroupData(String key, String group) {
+    }
+
+    public void getEntities(Listener listener) {
+    }
+
+    public void loadSnapshotImage(Listener listener) {
+    }
+
+    public void saveSnapshotImage(List<Entity> entities, List<String> blacklistedPackages) {
+    }
+}